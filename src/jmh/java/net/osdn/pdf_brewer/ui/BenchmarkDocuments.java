@@ -0,0 +1,116 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import freemarker.template.Template;
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * ベンチマークで使用する合成ドキュメント(.pb、.yml、.pdf)を生成します。
+ *
+ * 各ページは見出しと、折り返される本文の段落で構成されます。
+ * ページ数以外の条件(フォント、画像、段落の長さ)を変える場合は SyntheticCorpus を使用してください。
+ * 使用するフォントはシステムプロパティ pdf-brewer.bench.font で指定できます。(既定値は serif です。)
+ */
+final class BenchmarkDocuments {
+
+	static final String FONT = System.getProperty("pdf-brewer.bench.font", "serif");
+	static final String TEMPLATE_NAME = "bench.ftl";
+
+	private static final String SAMPLE = "吾輩は猫である。名前はまだ無い。どこで生れたかとんと見当がつかぬ。"
+			+ "何でも薄暗いじめじめした所でニャーニャー泣いていた事だけは記憶している。";
+
+	static final int PARAGRAPH_LENGTH = 600;
+
+	private BenchmarkDocuments() {
+	}
+
+	static FontLoader createFontLoader() {
+		FontLoader fontLoader = new FontLoader(FontLoader.getDefaultFontDir());
+		if(fontLoader.getFont(FONT) == null) {
+			throw new IllegalStateException("font not found: " + FONT);
+		}
+		return fontLoader;
+	}
+
+	static String heading(int page) {
+		return "第" + (page + 1) + "章";
+	}
+
+	static String paragraph(int page) {
+		return paragraph(page, PARAGRAPH_LENGTH);
+	}
+
+	static String paragraph(int page, int length) {
+		StringBuilder sb = new StringBuilder(length + SAMPLE.length());
+		int offset = page % SAMPLE.length();
+		sb.append(SAMPLE, offset, SAMPLE.length());
+		while(sb.length() < length) {
+			sb.append(SAMPLE);
+		}
+		sb.setLength(length);
+		return sb.toString();
+	}
+
+	/**
+	 * pages ページの .pb ファイルの内容を返します。
+	 */
+	static List<String> lines(int pages) {
+		try {
+			return new SyntheticCorpus(pages).lines();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static Path createPb(Path dir, int pages) throws IOException {
+		return new SyntheticCorpus(pages).createPb(dir);
+	}
+
+	/**
+	 * pages ページの .yml ファイルと、dir/templates に FreeMarker テンプレートを作成します。
+	 * .yml を読み込むには getTemplate で dir/templates を参照する DocumentLoader を使用してください。
+	 */
+	static Path createYaml(Path dir, int pages) throws IOException {
+		return new SyntheticCorpus(pages).createYaml(dir);
+	}
+
+	static Path createPdf(Path dir, int pages, FontLoader fontLoader) throws IOException {
+		return new SyntheticCorpus(pages).createPdf(dir, fontLoader);
+	}
+
+	static void delete(Path dir) throws IOException {
+		if(dir == null || !Files.exists(dir)) {
+			return;
+		}
+		try(Stream<Path> files = Files.walk(dir)) {
+			for(Path path : (Iterable<Path>)files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	/**
+	 * .yml のテンプレートを指定したフォルダーから読み込む DocumentLoader です。
+	 * (DocumentLoader はアプリケーションディレクトリから templates フォルダーを探します。)
+	 */
+	static class Loader extends DocumentLoader {
+		private Path templates;
+
+		Loader(Path input) {
+			super(input);
+			this.templates = input.resolveSibling("templates");
+		}
+
+		@Override
+		protected Template getTemplate(String name) throws IOException {
+			return getConfiguration(templates).getTemplate(name);
+		}
+	}
+}
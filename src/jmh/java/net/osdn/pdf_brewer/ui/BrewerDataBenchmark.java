@@ -0,0 +1,71 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * .pb ファイルを BrewerData に解析する時間をページ数ごとに計測します。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BrewerDataBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int pages;
+
+	private Path dir;
+	private Path input;
+	private FontLoader fontLoader;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		fontLoader = BenchmarkDocuments.createFontLoader();
+		dir = Files.createTempDirectory("pdf-brewer-bench");
+		input = BenchmarkDocuments.createPb(dir, pages);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		fontLoader.close();
+		BenchmarkDocuments.delete(dir);
+	}
+
+	@Benchmark
+	public int parse() throws IOException {
+		return new BrewerData(input, fontLoader).getInstructions().size();
+	}
+
+	@Benchmark
+	public int streaming() throws IOException {
+		int count = 0;
+		try(StreamingBrewerData pb = new StreamingBrewerData(input, fontLoader)) {
+			for(@SuppressWarnings("unused") Object instruction : pb) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
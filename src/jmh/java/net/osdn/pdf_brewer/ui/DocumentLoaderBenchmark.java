@@ -0,0 +1,83 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * DocumentLoader.call で入力ファイルをプレビュー用の PDDocument に読み込む時間を形式とページ数ごとに計測します。
+ *
+ * 毎回新しい DocumentLoader を使用するため、前回の生成結果は再利用されません。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentLoaderBenchmark {
+
+	@Param({"pb", "yml", "pdf"})
+	public String format;
+
+	@Param({"1", "10", "100", "1000"})
+	public int pages;
+
+	private Path dir;
+	private Path input;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("pdf-brewer-bench");
+		switch(format) {
+		case "pb":
+			input = BenchmarkDocuments.createPb(dir, pages);
+			break;
+		case "yml":
+			input = BenchmarkDocuments.createYaml(dir, pages);
+			break;
+		case "pdf":
+			FontLoader fontLoader = BenchmarkDocuments.createFontLoader();
+			try {
+				input = BenchmarkDocuments.createPdf(dir, pages, fontLoader);
+			} finally {
+				fontLoader.close();
+			}
+			break;
+		default:
+			throw new IllegalArgumentException(format);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkDocuments.delete(dir);
+	}
+
+	@Benchmark
+	public int call() throws Exception {
+		DocumentLoader loader = new BenchmarkDocuments.Loader(input);
+		try {
+			return loader.call().getNumberOfPages();
+		} finally {
+			loader.close();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.FontLoader;
+import net.osdn.pdf_brewer.PdfBrewer;
+
+/**
+ * 解析済みの BrewerData から PDF を生成して保存する時間をページ数ごとに計測します。
+ *
+ * library は net.osdn.pdf_brewer.PdfBrewer で、extended は ExtendedPdfBrewer で生成します。
+ * 保存先は破棄される出力ストリームです。(フォントのサブセット化と圧縮は計測に含まれます。)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PdfBrewerBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int pages;
+
+	private FontLoader fontLoader;
+	private BrewerData pb;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		fontLoader = BenchmarkDocuments.createFontLoader();
+		pb = new BrewerData(BenchmarkDocuments.lines(pages), fontLoader);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		fontLoader.close();
+	}
+
+	@Benchmark
+	public int library() throws IOException {
+		return processAndSave(new PdfBrewer(fontLoader));
+	}
+
+	@Benchmark
+	public int extended() throws IOException {
+		return processAndSave(new ExtendedPdfBrewer(fontLoader));
+	}
+
+	private int processAndSave(PdfBrewer brewer) throws IOException {
+		try {
+			brewer.process(pb);
+			brewer.save(OutputStream.nullOutputStream());
+			return brewer.getDocument().getNumberOfPages();
+		} finally {
+			brewer.close();
+		}
+	}
+}
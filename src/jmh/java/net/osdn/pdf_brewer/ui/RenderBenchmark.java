@@ -0,0 +1,77 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * PDFRenderer でページをラスタライズする時間をページ数と解像度ごとに計測します。
+ *
+ * 1 回の呼び出しで 1 ページを描画し、呼び出しごとに次のページに進みます。
+ * ヘッドレス環境で実行されます。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int pages;
+
+	@Param({"96", "192"})
+	public int dpi;
+
+	private Path dir;
+	private PDDocument document;
+	private PDFRenderer renderer;
+	private int pageIndex;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("pdf-brewer-bench");
+		FontLoader fontLoader = BenchmarkDocuments.createFontLoader();
+		try {
+			document = PDDocument.load(BenchmarkDocuments.createPdf(dir, pages, fontLoader).toFile());
+		} finally {
+			fontLoader.close();
+		}
+		renderer = new PDFRenderer(document);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		document.close();
+		BenchmarkDocuments.delete(dir);
+	}
+
+	@Benchmark
+	public BufferedImage render() throws IOException {
+		BufferedImage image = renderer.renderImageWithDPI(pageIndex, dpi, ImageType.RGB);
+		pageIndex = (pageIndex + 1) % pages;
+		return image;
+	}
+}
@@ -0,0 +1,298 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.FontLoader;
+import net.osdn.pdf_brewer.PdfBrewer;
+
+/**
+ * ページ数、使用するフォント、画像の数、段落の長さを指定して合成ドキュメント(.pb、.yml とテンプレート、.pdf)を生成します。
+ *
+ * 各ページは見出しと折り返される本文の段落で構成されます。
+ * フォントを複数指定した場合はページごとに順番に使用します。
+ * 画像を指定した場合は images 個の PNG ファイルを生成し、各ページに 1 つずつ順番に配置します。
+ * (PdfBrewer は画像のパスを空白で区切るため、画像を生成するフォルダーのパスに空白を含めることはできません。)
+ *
+ * コマンドラインから実行するとコーパスを生成します。
+ * <pre>
+ * SyntheticCorpus --out &lt;dir&gt; [--formats pb,yml,pdf] [--pages 1,10,100,1000,10000]
+ *                 [--fonts serif] [--images 0] [--paragraph 600]
+ * </pre>
+ */
+public class SyntheticCorpus {
+
+	public static final String TEMPLATE_NAME = BenchmarkDocuments.TEMPLATE_NAME;
+	public static final List<String> FORMATS = Collections.unmodifiableList(Arrays.asList("pb", "yml", "pdf"));
+
+	private static final int IMAGE_WIDTH = 480;
+	private static final int IMAGE_HEIGHT = 320;
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = parseArgs(args);
+		String out = options.get("out");
+		if(out == null) {
+			System.err.println("usage: SyntheticCorpus --out <dir> [--formats pb,yml,pdf] [--pages 1,10,100,1000,10000]"
+					+ " [--fonts " + BenchmarkDocuments.FONT + "] [--images 0] [--paragraph 600]");
+			System.exit(1);
+		}
+		Path dir = Files.createDirectories(Paths.get(out));
+		List<String> formats = split(options.getOrDefault("formats", String.join(",", FORMATS)));
+		List<String> fonts = split(options.getOrDefault("fonts", BenchmarkDocuments.FONT));
+		int images = Integer.parseInt(options.getOrDefault("images", "0"));
+		int paragraphLength = Integer.parseInt(options.getOrDefault("paragraph", Integer.toString(BenchmarkDocuments.PARAGRAPH_LENGTH)));
+
+		FontLoader fontLoader = formats.contains("pdf") ? BenchmarkDocuments.createFontLoader() : null;
+		try {
+			for(String pages : split(options.getOrDefault("pages", "1,10,100,1000,10000"))) {
+				SyntheticCorpus corpus = new SyntheticCorpus(Integer.parseInt(pages), fonts, images, paragraphLength);
+				for(String format : formats) {
+					System.out.println(corpus.create(format, dir, fontLoader));
+				}
+			}
+		} finally {
+			if(fontLoader != null) {
+				fontLoader.close();
+			}
+		}
+	}
+
+	private int pages;
+	private List<String> fonts;
+	private int images;
+	private int paragraphLength;
+
+	public SyntheticCorpus(int pages) {
+		this(pages, Collections.singletonList(BenchmarkDocuments.FONT), 0, BenchmarkDocuments.PARAGRAPH_LENGTH);
+	}
+
+	/**
+	 * @param pages ページ数
+	 * @param fonts 使用するフォント名(ページごとに順番に使用します)
+	 * @param images 生成する画像ファイルの数(0 の場合は画像を配置しません)
+	 * @param paragraphLength 各ページの本文の文字数
+	 */
+	public SyntheticCorpus(int pages, List<String> fonts, int images, int paragraphLength) {
+		if(fonts.isEmpty()) {
+			throw new IllegalArgumentException("fonts must not be empty");
+		}
+		this.pages = pages;
+		this.fonts = new ArrayList<String>(fonts);
+		this.images = Math.max(0, images);
+		this.paragraphLength = paragraphLength;
+	}
+
+	public int getPages() {
+		return pages;
+	}
+
+	/**
+	 * ファイル名に使用する名前を返します。(例: bench-100、bench-100-f2-i4-p1200)
+	 */
+	public String getName() {
+		StringBuilder sb = new StringBuilder("bench-").append(pages);
+		if(fonts.size() > 1 || images > 0 || paragraphLength != BenchmarkDocuments.PARAGRAPH_LENGTH) {
+			sb.append("-f").append(fonts.size()).append("-i").append(images).append("-p").append(paragraphLength);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 指定した形式(pb、yml、pdf)のファイルを dir に作成します。fontLoader は pdf の場合にだけ使用されます。
+	 */
+	public Path create(String format, Path dir, FontLoader fontLoader) throws IOException {
+		switch(format) {
+		case "pb":
+			return createPb(dir);
+		case "yml":
+			return createYaml(dir);
+		case "pdf":
+			return createPdf(dir, fontLoader);
+		default:
+			throw new IllegalArgumentException(format);
+		}
+	}
+
+	/**
+	 * 画像を配置しない場合の .pb ファイルの内容を返します。
+	 */
+	public List<String> lines() throws IOException {
+		if(images > 0) {
+			throw new IllegalStateException("images require a folder");
+		}
+		return lines(null);
+	}
+
+	/**
+	 * .pb ファイルの内容を返します。images が 0 でなければ dir に画像ファイルを作成します。
+	 */
+	public List<String> lines(Path dir) throws IOException {
+		List<Path> imageFiles = createImages(dir);
+		List<String> lines = new ArrayList<String>(pages * 10 + 2);
+		lines.add("\\media A4");
+		lines.add("\\font " + fonts.get(0) + " 10.5");
+		for(int i = 0; i < pages; i++) {
+			String font = fonts.get(i % fonts.size());
+			if(i > 0) {
+				lines.add("\\new-page");
+			}
+			if(fonts.size() > 1) {
+				lines.add("\\font " + font + " 10.5");
+			}
+			lines.add("\\box 20 20 -20 15");
+			lines.add("\t\\font " + font + " 16");
+			lines.add("\t\\text " + BenchmarkDocuments.heading(i));
+			lines.add("\\box 20 40 -20 -20");
+			lines.add("\t\\text-overflow wrap");
+			lines.add("\t\\text " + BenchmarkDocuments.paragraph(i, paragraphLength));
+			if(!imageFiles.isEmpty()) {
+				lines.add("\\box 20 200 -20 -20");
+				lines.add("\t\\image " + imageFiles.get(i % imageFiles.size()) + " 0.5");
+			}
+		}
+		return lines;
+	}
+
+	public Path createPb(Path dir) throws IOException {
+		Path path = dir.resolve(getName() + ".pb");
+		Files.write(path, lines(dir), StandardCharsets.UTF_8);
+		return path;
+	}
+
+	/**
+	 * .yml ファイルと、dir/templates に FreeMarker テンプレートを作成します。
+	 * .yml を読み込むには getTemplate で dir/templates を参照する DocumentLoader (BenchmarkDocuments.Loader)を使用してください。
+	 */
+	public Path createYaml(Path dir) throws IOException {
+		List<Path> imageFiles = createImages(dir);
+		Path templates = Files.createDirectories(dir.resolve("templates"));
+		List<String> template = new ArrayList<String>();
+		template.add("\\media A4");
+		template.add("\\font " + fonts.get(0) + " 10.5");
+		template.add("<#list pages as page>");
+		template.add("<#if page?index gt 0>\\new-page</#if>");
+		if(fonts.size() > 1) {
+			template.add("\\font ${page.font} 10.5");
+		}
+		template.add("\\box 20 20 -20 15");
+		template.add("\t\\font " + (fonts.size() > 1 ? "${page.font}" : fonts.get(0)) + " 16");
+		template.add("\t\\text ${page.heading}");
+		template.add("\\box 20 40 -20 -20");
+		template.add("\t\\text-overflow wrap");
+		template.add("\t\\text ${page.body}");
+		if(!imageFiles.isEmpty()) {
+			template.add("\\box 20 200 -20 -20");
+			template.add("\t\\image ${page.image} 0.5");
+		}
+		template.add("</#list>");
+		Files.write(templates.resolve(TEMPLATE_NAME), template, StandardCharsets.UTF_8);
+
+		List<String> yaml = new ArrayList<String>(pages * 4 + 3);
+		yaml.add("title: bench");
+		yaml.add("template: " + TEMPLATE_NAME);
+		yaml.add("pages:");
+		for(int i = 0; i < pages; i++) {
+			yaml.add("  - heading: \"" + BenchmarkDocuments.heading(i) + "\"");
+			if(fonts.size() > 1) {
+				yaml.add("    font: \"" + fonts.get(i % fonts.size()) + "\"");
+			}
+			yaml.add("    body: \"" + BenchmarkDocuments.paragraph(i, paragraphLength) + "\"");
+			if(!imageFiles.isEmpty()) {
+				yaml.add("    image: \"" + imageFiles.get(i % imageFiles.size()).toString().replace("\\", "\\\\") + "\"");
+			}
+		}
+		Path path = dir.resolve(getName() + ".yml");
+		Files.write(path, yaml, StandardCharsets.UTF_8);
+		return path;
+	}
+
+	public Path createPdf(Path dir, FontLoader fontLoader) throws IOException {
+		Path path = dir.resolve(getName() + ".pdf");
+		PdfBrewer brewer = new PdfBrewer(fontLoader);
+		try {
+			brewer.process(new BrewerData(lines(dir), fontLoader));
+			brewer.save(path);
+		} finally {
+			brewer.close();
+		}
+		return path;
+	}
+
+	/**
+	 * images 個の PNG ファイルを dir/images に作成して、絶対パスを返します。作成済みのファイルはそのまま使用します。
+	 * 画像はそれぞれ内容が異なるため、ドキュメント内で別の画像として埋め込まれます。
+	 */
+	protected List<Path> createImages(Path dir) throws IOException {
+		List<Path> files = new ArrayList<Path>(images);
+		if(images == 0) {
+			return files;
+		}
+		Path imagesDir = Files.createDirectories(dir.resolve("images")).toAbsolutePath().normalize();
+		if(imagesDir.toString().chars().anyMatch(Character::isWhitespace)) {
+			throw new IOException("image folder path must not contain whitespace: " + imagesDir);
+		}
+		for(int i = 0; i < images; i++) {
+			Path file = imagesDir.resolve("image-" + (i + 1) + ".png");
+			if(!Files.exists(file)) {
+				ImageIO.write(createImage(i), "png", file.toFile());
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	private static BufferedImage createImage(int seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		int base = random.nextInt(0x1000000);
+		for(int y = 0; y < IMAGE_HEIGHT; y++) {
+			for(int x = 0; x < IMAGE_WIDTH; x++) {
+				int r = (base >> 16 & 0xFF) + x * 255 / IMAGE_WIDTH;
+				int g = (base >> 8 & 0xFF) + y * 255 / IMAGE_HEIGHT;
+				int b = (base & 0xFF) + random.nextInt(32);
+				image.setRGB(x, y, (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF));
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * 「--name value」形式の引数を解析します。
+	 */
+	static Map<String, String> parseArgs(String[] args) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for(int i = 0; i < args.length; i++) {
+			if(!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("unexpected argument: " + args[i]);
+			}
+			String name = args[i].substring(2);
+			String value = (i + 1 < args.length && !args[i + 1].startsWith("--")) ? args[++i] : "true";
+			options.put(name, value);
+		}
+		return options;
+	}
+
+	static List<String> split(String s) {
+		List<String> list = new ArrayList<String>();
+		for(String t : s.split(",")) {
+			if(!t.trim().isEmpty()) {
+				list.add(t.trim());
+			}
+		}
+		return list;
+	}
+}
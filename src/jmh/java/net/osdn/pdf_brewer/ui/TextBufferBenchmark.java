@@ -0,0 +1,140 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * 空白を含まない段落(日本語の本文)を行に分割する時間と、段落の幅を求める時間を段落の長さごとに計測します。
+ *
+ * library は net.osdn.pdf_brewer.TextBuffer.divide と同じ方法(PDFont.getStringWidth による二分探索)で、
+ * cached は net.osdn.pdf_brewer.ui.TextBuffer.divide で分割します。
+ * stringWidthLibrary は PDFont.getStringWidth で、stringWidthCached は GlyphWidths.getStringWidth で幅を求めます。
+ * 使用するフォントはシステムプロパティ pdf-brewer.bench.font で指定できます。(既定値は serif です。)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBufferBenchmark {
+
+	private static final String SAMPLE = "吾輩は猫である。名前はまだ無い。どこで生れたかとんと見当がつかぬ。"
+			+ "何でも薄暗いじめじめした所でニャーニャー泣いていた事だけは記憶している。";
+
+	@Param({"1000", "2500", "5000", "10000"})
+	public int length;
+
+	public float maxWidth = 400.0f;
+	public float fontSize = 10.5f;
+
+	private FontLoader fontLoader;
+	private PDDocument document;
+	private PDFont font;
+	private GlyphWidths widths;
+	private String text;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		fontLoader = new FontLoader(FontLoader.getDefaultFontDir());
+		TrueTypeFont ttf = fontLoader.getFont(System.getProperty("pdf-brewer.bench.font", "serif"));
+		if(ttf == null) {
+			throw new IllegalStateException("font not found.");
+		}
+		document = new PDDocument();
+		font = PDType0Font.load(document, ttf, true);
+		widths = new GlyphWidths(font);
+
+		StringBuilder sb = new StringBuilder(length);
+		while(sb.length() < length) {
+			sb.append(SAMPLE);
+		}
+		sb.setLength(length);
+		text = sb.toString();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		document.close();
+		fontLoader.close();
+	}
+
+	@Benchmark
+	public int library() throws IOException {
+		int lines = 0;
+		String rest = text;
+		while(rest != null) {
+			rest = divideLibrary(maxWidth, font, fontSize, rest);
+			lines++;
+		}
+		return lines;
+	}
+
+	@Benchmark
+	public int cached() throws IOException {
+		int lines = 0;
+		TextBuffer.PrefixWidths prefix = new TextBuffer.PrefixWidths(widths, text);
+		int begin = 0;
+		while(begin < text.length()) {
+			begin = TextBuffer.divide(maxWidth, prefix, fontSize, begin).end;
+			lines++;
+		}
+		return lines;
+	}
+
+	@Benchmark
+	public float stringWidthLibrary() throws IOException {
+		return font.getStringWidth(text);
+	}
+
+	@Benchmark
+	public float stringWidthCached() throws IOException {
+		return widths.getStringWidth(text, 0, text.length());
+	}
+
+	/**
+	 * net.osdn.pdf_brewer.TextBuffer.divide と同じ方法で分割し、残りの文字列を返します。
+	 * (net.osdn.pdf_brewer.TextBuffer.DivideResult は公開されていないので同じ処理をここに記述しています。)
+	 */
+	private static String divideLibrary(float maxWidth, PDFont font, float fontSize, String text) throws IOException {
+		float width = font.getStringWidth(text) * fontSize / 1000.0f;
+		if(width <= maxWidth) {
+			return null;
+		}
+		int s = 0;
+		int p = text.length() / 2;
+		int e = text.length();
+		while((width = font.getStringWidth(text.substring(0, p)) * fontSize / 1000.0f) != maxWidth) {
+			if(width < maxWidth) {
+				s = p;
+			} else {
+				e = p;
+			}
+			if(p == (e + s) / 2) {
+				break;
+			}
+			p = (e + s) / 2;
+		}
+		return (p < text.length()) ? text.substring(p) : null;
+	}
+}
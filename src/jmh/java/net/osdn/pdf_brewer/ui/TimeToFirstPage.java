@@ -0,0 +1,283 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * 入力ファイルの読み込みを開始してから 1 ページ目のラスタライズが完了するまでの時間(time to first page)を計測します。
+ *
+ * 1 回の計測は PdfView.load と同じ処理です。DocumentLoader.call で PDDocument を生成し、
+ * 先頭の 10 ページを事前に描画してから、1 ページ目を指定した解像度で描画します。(ヘッドレス環境で実行されます。)
+ *
+ * 合成ドキュメントは SyntheticCorpus で生成します。形式とページ数の組み合わせごとに次の 2 つを計測します。
+ * <ul>
+ * <li>cold: 1 回ごとに新しい JVM を起動して計測します。JVM の起動を含む時間も process として記録します。</li>
+ * <li>warm: 1 つの JVM で warmup 回実行した後に iterations 回計測します。</li>
+ * </ul>
+ * 計測は組み合わせごとに別の JVM で実行し、その JVM のピーク RSS を記録します。
+ * (Linux では /proc/self/status の VmHWM を使用します。取得できない環境ではメモリープールのピーク使用量の合計を記録します。)
+ *
+ * 結果は標準出力と、--results で指定した CSV ファイルに出力します。
+ * <pre>
+ * TimeToFirstPage [--formats pb,yml,pdf] [--pages 1,10,100,1000,10000] [--fonts serif] [--images 0] [--paragraph 600]
+ *                 [--dpi 96] [--cold 5] [--warmup 3] [--iterations 10] [--dir &lt;corpus&gt;] [--results &lt;csv&gt;]
+ * </pre>
+ */
+public class TimeToFirstPage {
+
+	private static final int PRE_RENDER_PAGES = 10;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = SyntheticCorpus.parseArgs(args);
+		if(options.containsKey("child")) {
+			child(Paths.get(options.get("child")), options);
+			return;
+		}
+
+		List<String> formats = SyntheticCorpus.split(options.getOrDefault("formats", String.join(",", SyntheticCorpus.FORMATS)));
+		List<String> fonts = SyntheticCorpus.split(options.getOrDefault("fonts", BenchmarkDocuments.FONT));
+		int images = Integer.parseInt(options.getOrDefault("images", "0"));
+		int paragraphLength = Integer.parseInt(options.getOrDefault("paragraph", Integer.toString(BenchmarkDocuments.PARAGRAPH_LENGTH)));
+		int dpi = Integer.parseInt(options.getOrDefault("dpi", "96"));
+		int cold = Integer.parseInt(options.getOrDefault("cold", "5"));
+		int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+		int iterations = Integer.parseInt(options.getOrDefault("iterations", "10"));
+		Path results = options.containsKey("results") ? Paths.get(options.get("results")) : null;
+
+		// 指定されたフォルダーは削除しません。(生成済みのコーパスを再利用できます。)
+		Path dir = options.containsKey("dir") ? Files.createDirectories(Paths.get(options.get("dir"))) : Files.createTempDirectory("pdf-brewer-ttfp");
+		FontLoader fontLoader = formats.contains("pdf") ? BenchmarkDocuments.createFontLoader() : null;
+		PrintWriter csv = null;
+		try {
+			if(results != null) {
+				if(results.toAbsolutePath().getParent() != null) {
+					Files.createDirectories(results.toAbsolutePath().getParent());
+				}
+				csv = new PrintWriter(Files.newBufferedWriter(results, StandardCharsets.UTF_8));
+				csv.println("format,pages,fonts,images,paragraph,dpi,mode,n,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,process_p50_ms,peak_rss_bytes");
+			}
+			System.out.printf("%-6s %7s %-5s %4s %10s %10s %10s %10s %10s %12s %10s%n",
+					"format", "pages", "mode", "n", "mean", "p50", "p90", "p99", "max", "process p50", "peak RSS");
+
+			for(String pages : SyntheticCorpus.split(options.getOrDefault("pages", "1,10,100,1000,10000"))) {
+				SyntheticCorpus corpus = new SyntheticCorpus(Integer.parseInt(pages), fonts, images, paragraphLength);
+				for(String format : formats) {
+					Path input = corpus.create(format, dir, fontLoader);
+					List<Result> rows = new ArrayList<Result>();
+					if(cold > 0) {
+						Result result = new Result("cold");
+						for(int i = 0; i < cold; i++) {
+							result.add(fork(input, dpi, 0, 1));
+						}
+						rows.add(result);
+					}
+					if(iterations > 0) {
+						Result result = new Result("warm");
+						result.add(fork(input, dpi, warmup, iterations));
+						rows.add(result);
+					}
+					for(Result row : rows) {
+						System.out.printf("%-6s %7d %-5s %4d %10s %10s %10s %10s %10s %12s %10s%n",
+								format, corpus.getPages(), row.mode, row.ttfp.size(),
+								millis(row.mean()), millis(row.percentile(50)), millis(row.percentile(90)),
+								millis(row.percentile(99)), millis(row.percentile(100)),
+								row.process.isEmpty() ? "-" : millis(percentile(row.process, 50)),
+								row.peakRss < 0 ? "-" : StageTimings.formatBytes(row.peakRss));
+						if(csv != null) {
+							csv.printf("%s,%d,%d,%d,%d,%d,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%s,%d%n",
+									format, corpus.getPages(), fonts.size(), images, paragraphLength, dpi, row.mode, row.ttfp.size(),
+									row.mean() / 1e6, row.percentile(50) / 1e6, row.percentile(90) / 1e6,
+									row.percentile(99) / 1e6, row.percentile(100) / 1e6,
+									row.process.isEmpty() ? "" : String.format("%.3f", percentile(row.process, 50) / 1e6),
+									row.peakRss);
+							csv.flush();
+						}
+					}
+				}
+			}
+		} finally {
+			if(csv != null) {
+				csv.close();
+			}
+			if(fontLoader != null) {
+				fontLoader.close();
+			}
+			if(!options.containsKey("dir")) {
+				BenchmarkDocuments.delete(dir);
+			}
+		}
+		if(results != null) {
+			System.out.println(results.toAbsolutePath());
+		}
+	}
+
+	/**
+	 * 新しい JVM で input を計測します。子プロセスには同じクラスパスと pdf-brewer. で始まるシステムプロパティを引き継ぎます。
+	 */
+	private static Result fork(Path input, int dpi, int warmup, int iterations) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-Djava.awt.headless=true");
+		for(String name : System.getProperties().stringPropertyNames()) {
+			if(name.startsWith("pdf-brewer.")) {
+				command.add("-D" + name + "=" + System.getProperty(name));
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(TimeToFirstPage.class.getName());
+		command.addAll(Arrays.asList("--child", input.toAbsolutePath().toString(),
+				"--dpi", Integer.toString(dpi),
+				"--warmup", Integer.toString(warmup),
+				"--iterations", Integer.toString(iterations)));
+
+		Result result = new Result(null);
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("ttfp ")) {
+					result.ttfp.add(Long.parseLong(line.substring(5).trim()));
+				} else if(line.startsWith("rss ")) {
+					result.peakRss = Long.parseLong(line.substring(4).trim());
+				}
+			}
+		}
+		int exitValue = process.waitFor();
+		if(exitValue != 0 || result.ttfp.size() != iterations) {
+			throw new IOException("measurement failed (exit " + exitValue + "): " + input);
+		}
+		if(warmup == 0 && iterations == 1) {
+			result.process.add(System.nanoTime() - start);
+		}
+		return result;
+	}
+
+	private static void child(Path input, Map<String, String> options) throws Exception {
+		int dpi = Integer.parseInt(options.getOrDefault("dpi", "96"));
+		int warmup = Integer.parseInt(options.getOrDefault("warmup", "0"));
+		int iterations = Integer.parseInt(options.getOrDefault("iterations", "1"));
+		for(int i = 0; i < warmup; i++) {
+			firstPage(input, dpi);
+		}
+		for(int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			firstPage(input, dpi);
+			System.out.println("ttfp " + (System.nanoTime() - start));
+		}
+		System.out.println("rss " + getPeakRss());
+	}
+
+	/**
+	 * PdfView.load と同じ手順で input を読み込み、1 ページ目を描画します。
+	 */
+	static BufferedImage firstPage(Path input, int dpi) throws Exception {
+		DocumentLoader loader = new BenchmarkDocuments.Loader(input);
+		try {
+			PDDocument document = loader.call();
+			PDFRenderer renderer = new PDFRenderer(document);
+			BufferedImage bimg = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+			Graphics2D graphics = bimg.createGraphics();
+			try {
+				int max = Math.min(PRE_RENDER_PAGES, document.getNumberOfPages());
+				for(int i = 0; i < max; i++) {
+					renderer.renderPageToGraphics(i, graphics);
+				}
+			} finally {
+				graphics.dispose();
+			}
+			return renderer.renderImageWithDPI(0, dpi, ImageType.RGB);
+		} finally {
+			loader.close();
+		}
+	}
+
+	/**
+	 * このプロセスのピーク RSS を返します。
+	 */
+	static long getPeakRss() {
+		File status = new File("/proc/self/status");
+		if(status.exists()) {
+			try {
+				for(String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+					if(line.startsWith("VmHWM:")) {
+						String[] tokens = line.substring(6).trim().split("\\s+");
+						return Long.parseLong(tokens[0]) * 1024;
+					}
+				}
+			} catch(IOException | NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		long total = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getPeakUsage() != null) {
+				total += pool.getPeakUsage().getUsed();
+			}
+		}
+		return (total > 0) ? total : -1;
+	}
+
+	private static String millis(double nanos) {
+		return String.format("%,.1f ms", nanos / 1e6);
+	}
+
+	/**
+	 * 最近順位法(nearest-rank)でパーセンタイルを求めます。
+	 */
+	static long percentile(List<Long> values, int p) {
+		if(values.isEmpty()) {
+			return 0;
+		}
+		long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+		int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private static class Result {
+		final String mode;
+		final List<Long> ttfp = new ArrayList<Long>();
+		final List<Long> process = new ArrayList<Long>();
+		long peakRss = -1;
+
+		Result(String mode) {
+			this.mode = mode;
+		}
+
+		void add(Result other) {
+			ttfp.addAll(other.ttfp);
+			process.addAll(other.process);
+			peakRss = Math.max(peakRss, other.peakRss);
+		}
+
+		long percentile(int p) {
+			return TimeToFirstPage.percentile(ttfp, p);
+		}
+
+		double mean() {
+			return ttfp.stream().mapToLong(Long::longValue).average().orElse(0);
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import net.osdn.pdf_brewer.PdfBrewer;
+
+/**
+ * GUI を起動せずに .pb / .yml をまとめて PDF に変換します。
+ *
+ * <pre>
+ * pdf-brewer --batch [-o 出力ディレクトリ] [-j スレッド数] ファイル|ディレクトリ|glob ...
+ * </pre>
+ */
+public class BatchCompiler {
+
+	public static final String OPTION = "--batch";
+
+	static {
+		System.setProperty("org.apache.commons.logging.LogFactory", "net.osdn.pdf_brewer.ui.LogFilter");
+		LogFilter.setLevel("org.apache.pdfbox", LogFilter.Level.ERROR);
+		LogFilter.setLevel("org.apache.fontbox", LogFilter.Level.ERROR);
+	}
+
+	public static void main(String[] args) {
+		System.exit(run(args));
+	}
+
+	public static int run(String[] args) {
+		BatchCompiler compiler = new BatchCompiler(System.out);
+		try {
+			if(!compiler.parse(args)) {
+				compiler.printUsage();
+				return 2;
+			}
+			return compiler.execute() ? 0 : 1;
+		} catch(Exception e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	private PrintStream out;
+	private Path outputDirectory;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private List<String> patterns = new ArrayList<String>();
+
+	public BatchCompiler(PrintStream out) {
+		this.out = out;
+	}
+
+	public void setOutputDirectory(Path dir) {
+		this.outputDirectory = dir;
+	}
+
+	public Path getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	protected boolean parse(String[] args) {
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("-o") || arg.equals("--output")) {
+				if(++i >= args.length) {
+					return false;
+				}
+				setOutputDirectory(Paths.get(args[i]));
+			} else if(arg.equals("-j") || arg.equals("--threads")) {
+				if(++i >= args.length) {
+					return false;
+				}
+				try {
+					setThreads(Integer.parseInt(args[i]));
+				} catch(NumberFormatException e) {
+					return false;
+				}
+			} else if(arg.startsWith("-")) {
+				return false;
+			} else {
+				patterns.add(arg);
+			}
+		}
+		return !patterns.isEmpty();
+	}
+
+	protected void printUsage() {
+		out.println("usage: pdf-brewer " + OPTION + " [-o <output-dir>] [-j <threads>] <file|dir|glob>...");
+		out.println("  -o, --output   directory to write PDF files (default: same as input)");
+		out.println("  -j, --threads  number of worker threads (default: " + Runtime.getRuntime().availableProcessors() + ")");
+	}
+
+	public boolean execute() throws IOException, InterruptedException {
+		List<String> rejected = new ArrayList<String>();
+		List<Path> inputs = collect(patterns, rejected);
+		for(String message : rejected) {
+			out.println("FAIL " + message);
+		}
+		if(inputs.isEmpty()) {
+			out.println("no input files.");
+			return false;
+		}
+		if(!checkOutputFiles(inputs)) {
+			return false;
+		}
+		if(outputDirectory != null) {
+			Files.createDirectories(outputDirectory);
+		}
+
+		AtomicInteger number = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, inputs.size()), r -> {
+			Thread t = new Thread(r, "BatchCompiler-" + number.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		CompletionService<Result> service = new ExecutorCompletionService<Result>(executor);
+
+		long start = System.nanoTime();
+		for(Path input : inputs) {
+			service.submit(() -> compile(input));
+		}
+
+		int succeeded = 0;
+		int failed = rejected.size();
+		long pages = 0;
+		try {
+			for(int i = 0; i < inputs.size(); i++) {
+				Result result;
+				try {
+					result = service.take().get();
+				} catch(ExecutionException e) {
+					// compile は例外を Result に格納するのでここには来ません。
+					e.getCause().printStackTrace();
+					failed++;
+					continue;
+				}
+				if(result.exception == null) {
+					succeeded++;
+					pages += result.pages;
+					out.printf("OK   %s -> %s (%d pages, %d ms)%n", result.input, result.output, result.pages, result.millis);
+				} else {
+					failed++;
+					String message = result.exception.getLocalizedMessage();
+					out.printf("FAIL %s: %s%s%n", result.input, result.exception.getClass().getName(),
+							message != null ? ": " + message.trim() : "");
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1000000000.0;
+		out.printf("%d files (%d succeeded, %d failed), %d pages in %.2f s: %.2f files/s, %.2f pages/s (%d threads)%n",
+				inputs.size() + rejected.size(), succeeded, failed, pages, seconds,
+				succeeded / seconds, pages / seconds, Math.min(threads, inputs.size()));
+		return failed == 0;
+	}
+
+	protected Result compile(Path input) {
+		Result result = new Result(input);
+		long start = System.nanoTime();
+		try {
+			result.output = getOutputFile(input);
+			PdfBrewer brewer = new DocumentLoader(input).brew();
+			try {
+				result.pages = brewer.getDocument().getNumberOfPages();
+				brewer.save(result.output);
+			} finally {
+				brewer.close();
+			}
+		} catch(Exception e) {
+			result.exception = e;
+		}
+		result.millis = (System.nanoTime() - start) / 1000000;
+		return result;
+	}
+
+	protected Path getOutputFile(Path input) {
+		String name = input.getFileName().toString();
+		int i = name.lastIndexOf('.');
+		if(i > 0) {
+			name = name.substring(0, i);
+		}
+		name += ".pdf";
+		Path dir = (outputDirectory != null) ? outputDirectory : input.toAbsolutePath().getParent();
+		return dir.resolve(name);
+	}
+
+	/**
+	 * 出力ファイルが重複していないか確認します。
+	 * 同じフォルダーの a.pb と a.yml や、-o を指定したときの別のフォルダーにある同じ名前のファイルは同じ PDF に出力されるため、
+	 * 並列に書き込まれて一方の結果が失われます。重複している場合はメッセージを出力して false を返します。
+	 */
+	protected boolean checkOutputFiles(List<Path> inputs) {
+		Map<Path, List<Path>> outputs = new LinkedHashMap<Path, List<Path>>();
+		for(Path input : inputs) {
+			Path output = getOutputFile(input).toAbsolutePath().normalize();
+			outputs.computeIfAbsent(output, k -> new ArrayList<Path>()).add(input);
+		}
+		boolean isValid = true;
+		for(Map.Entry<Path, List<Path>> entry : outputs.entrySet()) {
+			if(entry.getValue().size() > 1) {
+				isValid = false;
+				out.printf("duplicate output %s <- %s%n", entry.getKey(),
+						entry.getValue().stream().map(Path::toString).collect(Collectors.joining(", ")));
+			}
+		}
+		return isValid;
+	}
+
+	protected static boolean isAcceptable(Path path) {
+		return Files.isRegularFile(path) && path.getFileName().toString().matches("(?i).+(\\.yml|\\.pb)");
+	}
+
+	/**
+	 * ファイル、ディレクトリ(サブディレクトリを含む)、glob パターンから入力ファイルを列挙します。
+	 * 存在しないファイル、.pb と .yml 以外のファイル、入力ファイルが見つからないディレクトリと glob パターンは、
+	 * 理由を添えて rejected に追加します。
+	 */
+	protected static List<Path> collect(List<String> patterns, List<String> rejected) throws IOException {
+		Set<Path> inputs = new LinkedHashSet<Path>();
+		for(String pattern : patterns) {
+			List<Path> found = new ArrayList<Path>();
+			if(isGlob(pattern)) {
+				String s = pattern.replace('\\', '/');
+				int i = s.lastIndexOf('/', indexOfGlob(s));
+				Path base = Paths.get(i >= 0 ? pattern.substring(0, i + 1) : ".");
+				String glob = (i >= 0 ? s.substring(i + 1) : s);
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+				// Java の glob では **/*.pb が直下のファイルに一致しないので、シェルの globstar と同じように **/ を除いたパターンでも照合します。
+				PathMatcher direct = glob.startsWith("**/") ? FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(3)) : matcher;
+				if(Files.isDirectory(base)) {
+					try(Stream<Path> stream = Files.walk(base)) {
+						found.addAll(stream
+								.filter(p -> matcher.matches(base.relativize(p)) || direct.matches(base.relativize(p)))
+								.filter(BatchCompiler::isAcceptable)
+								.sorted()
+								.collect(Collectors.toList()));
+					}
+				}
+			} else {
+				Path path = Paths.get(pattern);
+				if(Files.isDirectory(path)) {
+					try(Stream<Path> stream = Files.walk(path)) {
+						found.addAll(stream.filter(BatchCompiler::isAcceptable).sorted().collect(Collectors.toList()));
+					}
+				} else if(isAcceptable(path)) {
+					found.add(path);
+				} else if(!Files.exists(path)) {
+					rejected.add(pattern + ": file not found");
+					continue;
+				} else {
+					rejected.add(pattern + ": not a .pb or .yml file");
+					continue;
+				}
+			}
+			if(found.isEmpty()) {
+				rejected.add(pattern + ": no input files");
+			}
+			inputs.addAll(found);
+		}
+		return new ArrayList<Path>(inputs);
+	}
+
+	private static boolean isGlob(String s) {
+		return indexOfGlob(s) >= 0;
+	}
+
+	private static int indexOfGlob(String s) {
+		for(int i = 0; i < s.length(); i++) {
+			if("*?[{".indexOf(s.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	protected static class Result {
+		final Path input;
+		Path output;
+		int pages;
+		long millis;
+		Exception exception;
+
+		Result(Path input) {
+			this.input = input;
+		}
+	}
+}
@@ -1,15 +1,40 @@
 package net.osdn.pdf_brewer.ui;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.DefaultResourceCache;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.font.PDFont;
 
 import com.esotericsoftware.yamlbeans.YamlReader;
 
@@ -17,38 +42,561 @@ import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.FontLoader;
 import net.osdn.pdf_brewer.PdfBrewer;
+import net.osdn.pdf_brewer.instruction.Image;
+import net.osdn.pdf_brewer.instruction.Instruction;
 import net.osdn.util.io.AutoDetectReader;
 
-public class DocumentLoader implements Callable<PDDocument> {
+public class DocumentLoader implements Callable<PDDocument>, Closeable {
+
+	public static final String MEMORY_MODE_PROPERTY = "pdf-brewer.memory";
+	public static final String STREAMING_PROPERTY = "pdf-brewer.streaming";
+	private static final long MAX_MAIN_MEMORY_BYTES = 64L * 1024 * 1024;
+
+	private static Path templatesDir;
+	private static Map<Path, Configuration> configurations = new ConcurrentHashMap<Path, Configuration>();
 	
 	private Path input;
+	private PdfBrewer brewer;
+	private PDDocument document;
+	private Set<Path> dependencies = new LinkedHashSet<Path>();
+	private volatile boolean isCancelled;
+	private volatile IncrementalBrewer incremental;
+	private IncrementalBrewer.Build build;
+	private BrewerData data;
+	private BitSet dirtyPages;
+	private String pageKeyPrefix;
+	private boolean isFileBacked;
+	private String title;
+	private String author;
+	private volatile StageTimings timings;
 	
 	public DocumentLoader(Path input) {
 		this.input = input;
+		this.dependencies.add(input);
+		this.timings = new StageTimings(input.getFileName().toString(), input.toString());
 	}
 
+	/**
+	 * 入力ファイルを読み込みます。読み込みは Java Flight Recorder に FlightRecorderEvents.DocumentLoad として記録されます。
+	 */
 	@Override
 	public PDDocument call() throws Exception {
+		FlightRecorderEvents.DocumentLoad event = new FlightRecorderEvents.DocumentLoad();
+		event.input = input.toString();
+		event.type = isPdf(input) ? "pdf" : isYaml(input) ? "yml" : "pb";
+		event.bytes = input.toFile().length();
+		event.begin();
+		try {
+			PDDocument result = load();
+			// 生成が完了する前に中止された場合は、表示されることのないドキュメントをここで閉じます。
+			if(isCancelled) {
+				close();
+				throw new CancellationException();
+			}
+			event.succeeded = true;
+			return result;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				if(event.succeeded) {
+					event.pages = document.getNumberOfPages();
+					event.dirtyPages = (dirtyPages != null) ? dirtyPages.cardinality() : event.pages;
+				}
+				event.commit();
+			}
+		}
+	}
+
+	protected PDDocument load() throws Exception {
+		checkCancelled();
 		if(isPdf(input)) {
-			return PDDocument.load(Files.readAllBytes(input));
+			// 読み込む前のファイルの状態をサムネイルのキャッシュのキーにします。
+			File file = input.toFile();
+			pageKeyPrefix = digest(file.getAbsoluteFile().toPath().normalize() + "|" + file.length() + "|" + file.lastModified());
+			StageTimings.Stage stage = timings.start("PDF 読み込み");
+			try {
+				document = loadPdf(input);
+			} finally {
+				stage.stop();
+			}
+			return document;
+		}
+		// 画像ファイルを参照できない場合は画像の更新を検出できないため、部分的な再生成を行いません。
+		if(isStreaming(input) || !PdfBrewerInternals.isImageAvailable()) {
+			brewer = brew();
+			try {
+				StageTimings.Stage stage = timings.start("レイアウト");
+				try {
+					document = getDocument(brewer);
+				} finally {
+					stage.stop();
+				}
+			} catch(Exception e) {
+				close();
+				throw e;
+			}
+			return document;
 		}
 
-		PdfBrewer brewer = new PdfBrewer();
+		try {
+			if(incremental == null) {
+				incremental = new IncrementalBrewer();
+			}
+			BrewerData pb = parse(incremental.getFontLoader());
+			checkCancelled();
+			StageTimings.Stage stage = timings.start("レイアウト");
+			try {
+				build = incremental.build(pb, title, author, this::checkCancelled);
+			} finally {
+				stage.stop();
+			}
+			data = pb;
+			document = build.getDocument();
+			dirtyPages = build.getDirtyPages();
+			// ページのキーにはフォントの変更が含まれないので、フォントフォルダーの状態を加えます。
+			pageKeyPrefix = String.format("%016x", FontLoaderPool.getDefault().getSignature());
+		} catch(Exception e) {
+			close();
+			throw e;
+		}
+		return document;
+	}
+
+	/**
+	 * 同じ入力ファイルを前回読み込んだ DocumentLoader を指定します。
+	 * 前回の生成結果のうち命令列が変更されていないページは再生成されずに再利用されます。
+	 * call を呼び出す前に指定してください。
+	 */
+	public void setPrevious(DocumentLoader previous) {
+		if(previous == null || !previous.input.equals(input)) {
+			return;
+		}
+		IncrementalBrewer session = previous.incremental;
+		if(session != null) {
+			incremental = session.retain();
+		}
+	}
+
+	/**
+	 * 前回の生成結果から内容が変わった可能性のあるページのインデックスを返します。
+	 * PDF を読み込んだ場合や前回の生成結果がない場合はすべてのページが含まれます。
+	 */
+	public BitSet getDirtyPages() {
+		if(dirtyPages == null) {
+			BitSet all = new BitSet();
+			if(document != null) {
+				all.set(0, document.getNumberOfPages());
+			}
+			return all;
+		}
+		return (BitSet)dirtyPages.clone();
+	}
+
+	/**
+	 * call で生成した PDDocument を返します。読み込んでいない場合や閉じた後は null を返します。
+	 */
+	public PDDocument getDocument() {
+		return document;
+	}
+
+	/**
+	 * ページの描画結果を識別する文字列を返します。サムネイルのディスクキャッシュのキーとして使用します。
+	 *
+	 * PDF の場合はファイルのパス、サイズ、更新日時から求めたハッシュ値とページ番号、
+	 * .pb と .yml の場合はページの命令列と用紙サイズから求めた値(IncrementalBrewer.Build.getPageKey)とフォントフォルダーの状態から求めます。
+	 * 少しずつ読み込んだ .pb の場合や、読み込んでいない場合は null を返します。
+	 */
+	public String getPageKey(int pageIndex) {
+		if(document == null || pageKeyPrefix == null || pageIndex < 0 || pageIndex >= document.getNumberOfPages()) {
+			return null;
+		}
+		if(build != null) {
+			return pageKeyPrefix + "-" + String.format("%016x", build.getPageKey(pageIndex));
+		}
+		return pageKeyPrefix + "-" + pageIndex;
+	}
+
+	private static String digest(String s) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < 16; i++) {
+				sb.append(String.format("%02x", hash[i]));
+			}
+			return sb.toString();
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * call で生成した PDDocument を保存します。
+	 *
+	 * 部分的に再生成した PDDocument にはフォントが埋め込まれていないため、
+	 * .pb と .yml の場合は表示中のドキュメントを生成したときの命令列から全体を生成し直して保存します。
+	 * (入力ファイルを読み込み直さないため、表示後に入力ファイルが変更されても表示中の内容が保存されます。)
+	 *
+	 * 入力ファイル自身に保存する場合は、同じフォルダーの一時ファイルに保存してから入力ファイルを置き換えます。
+	 * PDF をファイルから直接読み込んだ場合は、ドキュメントを閉じるまで入力ファイルが開かれたままで、
+	 * まだ読み込んでいないオブジェクトは入力ファイルから読み込まれるため、入力ファイル自身には保存できません。
+	 */
+	public void save(File file) throws Exception {
+		if(build == null) {
+			StageTimings.Stage stage = timings.start("保存");
+			try {
+				if(file.exists() && Files.isSameFile(file.toPath(), input)) {
+					if(isFileBacked) {
+						throw new IOException("ファイルから直接読み込んだ PDF は、読み込み元のファイルに上書き保存できません。別の名前で保存してください。");
+					}
+					Path tmp = Files.createTempFile(input.toAbsolutePath().getParent(), "pdf-brewer", ".tmp");
+					try {
+						document.save(tmp.toFile());
+						Files.move(tmp, input, StandardCopyOption.REPLACE_EXISTING);
+					} finally {
+						Files.deleteIfExists(tmp);
+					}
+				} else {
+					document.save(file);
+				}
+			} finally {
+				stage.stop();
+			}
+			return;
+		}
+		// 保存のための再生成は「解析」「レイアウト」に加算せず、書き込みと合わせて「保存」として記録します。
+		BrewerData pb = data;
+		StageTimings measured = timings;
+		StageTimings.Stage stage = measured.start("保存");
+		try {
+			timings = new StageTimings(measured.getName());
+			ExtendedPdfBrewer brewer = createPdfBrewer();
+			try {
+				layout(brewer, pb);
+				brewer.save(file.toPath());
+			} finally {
+				brewer.close();
+			}
+		} finally {
+			timings = measured;
+			stage.stop();
+		}
+	}
+
+	/**
+	 * 部分的な再生成で読み込んだかどうかを返します。
+	 * true の場合、save は表示中の PDDocument を使用せずに、その命令列から生成し直して保存します。
+	 */
+	public boolean isIncremental() {
+		return build != null;
+	}
+
+	/**
+	 * 処理の中止を要求します。
+	 * 処理中の call は次の処理段階の境界で CancellationException をスローして終了します。
+	 * このとき生成途中のドキュメントは閉じられます。(開始前の call は何もせずに終了します。)
+	 */
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	protected void checkCancelled() {
+		if(isCancelled) {
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * 入力ファイルと、処理中に参照したテンプレートフォルダー、画像ファイルを返します。
+	 */
+	public Set<Path> getDependencies() {
+		return Collections.unmodifiableSet(dependencies);
+	}
+
+	/**
+	 * call で生成した PDDocument を閉じます。
+	 * .pb と .yml の場合は生成結果を閉じ、後続の DocumentLoader に引き継がれていなければ FontLoader を FontLoaderPool に返却します。
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if(build != null) {
+				build.close();
+			} else if(brewer != null) {
+				brewer.close();
+			} else if(document != null) {
+				document.close();
+			}
+		} finally {
+			build = null;
+			data = null;
+			brewer = null;
+			document = null;
+			pageKeyPrefix = null;
+			IncrementalBrewer session = incremental;
+			incremental = null;
+			if(session != null) {
+				session.release();
+			}
+		}
+	}
+
+	public Path getInput() {
+		return input;
+	}
+
+	/**
+	 * 処理段階ごとの所要時間を返します。
+	 * call では「YAML」「FreeMarker」「解析」「レイアウト」「PDF 読み込み」が、save では「保存」が記録されます。
+	 */
+	public StageTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * .pb または .yml を処理済みの PdfBrewer を返します。
+	 * 保存と close は呼び出し側で行ってください。
+	 */
+	public PdfBrewer brew() throws Exception {
+		ExtendedPdfBrewer brewer = createPdfBrewer();
+		try {
+			if(isStreaming(input)) {
+				try(StreamingBrewerData pb = new StreamingBrewerData(input, brewer.getFontLoader())) {
+					brewer.setMemoryUsageSetting(MemoryUsageSetting.setupTempFileOnly());
+					checkCancelled();
+					// 命令の解析とレイアウトは交互に行われるため、まとめて計測します。
+					StageTimings.Stage stage = timings.start("レイアウト");
+					try {
+						brewer.process(pb);
+					} finally {
+						stage.stop();
+					}
+					dependencies.addAll(pb.getImageFiles());
+				}
+				return brewer;
+			}
+			layout(brewer, parse(brewer.getFontLoader()));
+			return brewer;
+		} catch(Exception e) {
+			brewer.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 命令列を PdfBrewer で処理します。.yml のタイトルと作成者も設定します。
+	 */
+	private void layout(ExtendedPdfBrewer brewer, BrewerData pb) throws Exception {
+		if(title != null) {
+			brewer.setTitle(title);
+		}
+		if(author != null) {
+			brewer.setAuthor(author);
+		}
+		checkCancelled();
+		StageTimings.Stage stage = timings.start("レイアウト");
+		try {
+			brewer.process(pb);
+		} finally {
+			stage.stop();
+		}
+	}
+
+	/**
+	 * .pb または .yml を読み込んで命令列を返します。
+	 * .yml のタイトルと作成者は title, author に格納されます。
+	 */
+	protected BrewerData parse(FontLoader fontLoader) throws Exception {
 		BrewerData pb;
-		
 		if(isYaml(input)) {
 			Data data = processYaml(input);
-			brewer.setTitle(data.title);
-			brewer.setAuthor(data.author);
-			pb = new BrewerData(data.lines, brewer.getFontLoader());
+			title = data.title;
+			author = data.author;
+			checkCancelled();
+			StageTimings.Stage stage = timings.start("解析");
+			try {
+				pb = new BrewerData(data.lines, fontLoader);
+			} finally {
+				stage.stop();
+			}
 		} else {
-			pb = new BrewerData(input, brewer.getFontLoader());
+			StageTimings.Stage stage = timings.start("解析");
+			try {
+				pb = new BrewerData(input, fontLoader);
+			} finally {
+				stage.stop();
+			}
+		}
+		for(Instruction instruction : pb.getInstructions()) {
+			if(instruction instanceof Image) {
+				File file = getFile((Image)instruction);
+				if(file != null) {
+					dependencies.add(file.toPath());
+				}
+			}
+		}
+		return pb;
+	}
+
+	/**
+	 * FontLoaderPool から取得した FontLoader を使用する PdfBrewer を生成します。
+	 * FontLoader は PdfBrewer の close で FontLoaderPool に返却されます。
+	 */
+	protected ExtendedPdfBrewer createPdfBrewer() {
+		FontLoaderPool pool = FontLoaderPool.getDefault();
+		FontLoader fontLoader = pool.acquire();
+		try {
+			return new ExtendedPdfBrewer(fontLoader) {
+				@Override
+				public PDPageContentStream getContentStream() {
+					// 描画命令はすべて getContentStream を呼び出すので、ここで中止要求を確認します。
+					checkCancelled();
+					return super.getContentStream();
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						pool.release(fontLoader);
+					}
+				}
+			};
+		} catch(RuntimeException e) {
+			pool.release(fontLoader);
+			throw e;
+		}
+	}
+
+	/**
+	 * PDF ファイルを読み込みます。
+	 *
+	 * 読み込み方法はシステムプロパティ {@value #MEMORY_MODE_PROPERTY} で指定できます。
+	 * (auto, memory, mixed, temp-file のいずれか。既定値は auto です。)
+	 * auto の場合、ファイルサイズがヒープの空き容量に対して十分に小さければファイル全体をメモリーに読み込み、
+	 * そうでなければファイルから直接読み込んで、作業領域にはメモリーと一時ファイルを併用します。
+	 * ファイルから直接読み込んだ場合、ドキュメントを閉じるまでファイルは開かれたままになります。
+	 */
+	protected PDDocument loadPdf(Path input) throws IOException {
+		String mode = System.getProperty(MEMORY_MODE_PROPERTY, "auto").trim().toLowerCase();
+		long available = getAvailableMemory();
+		if(mode.equals("auto")) {
+			mode = (Files.size(input) <= available / 8) ? "memory" : "mixed";
+		}
+		switch(mode) {
+		case "memory":
+			isFileBacked = false;
+			return PDDocument.load(Files.readAllBytes(input));
+		case "temp-file":
+			isFileBacked = true;
+			return PDDocument.load(input.toFile(), MemoryUsageSetting.setupTempFileOnly());
+		case "mixed":
+			isFileBacked = true;
+			return PDDocument.load(input.toFile(), MemoryUsageSetting.setupMixed(Math.max(1L << 20, Math.min(available / 8, MAX_MAIN_MEMORY_BYTES))));
+		default:
+			throw new IllegalArgumentException(MEMORY_MODE_PROPERTY + "=" + mode);
+		}
+	}
+
+	/**
+	 * .pb を少しずつ読み込んで処理するかどうかを返します。
+	 *
+	 * システムプロパティ {@value #STREAMING_PROPERTY} で指定できます。(auto, true, false のいずれか。既定値は auto です。)
+	 * auto の場合、ファイルサイズがヒープの空き容量に対して大きければ少しずつ読み込みます。
+	 * 少しずつ読み込む場合は部分的な再生成を行わず、描画が終わったページのコンテンツストリームは一時ファイルに保持されます。
+	 */
+	protected boolean isStreaming(Path input) throws IOException {
+		if(!input.getFileName().toString().toLowerCase().endsWith(".pb")) {
+			return false;
+		}
+		String mode = System.getProperty(STREAMING_PROPERTY, "auto").trim().toLowerCase();
+		switch(mode) {
+		case "auto":
+			return Files.size(input) > getAvailableMemory() / 16;
+		case "true":
+			return true;
+		case "false":
+			return false;
+		default:
+			throw new IllegalArgumentException(STREAMING_PROPERTY + "=" + mode);
+		}
+	}
+
+	protected static long getAvailableMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * 処理済みの PdfBrewer から保存と再読み込みをせずに PDDocument を取り出します。
+	 *
+	 * フォントのサブセット化は PDDocument を保存するときに行われるため、
+	 * 取り出した PDDocument にはまだフォントが埋め込まれていません。
+	 * 描画時に PdfBrewer が読み込んだフォントがそのまま使われるように、
+	 * フォントをドキュメントのリソースキャッシュに登録します。
+	 * 返された PDDocument は PdfBrewer を閉じるまで有効です。
+	 */
+	protected PDDocument getDocument(PdfBrewer brewer) throws IOException {
+		PDDocument document = brewer.getDocument();
+		document.setResourceCache(finish(brewer));
+		return document;
+	}
+
+	/**
+	 * getDocument の処理のうち、リソースキャッシュの設定以外を行い、フォントを登録したリソースキャッシュを返します。
+	 */
+	static FontResourceCache finish(PdfBrewer brewer) throws IOException {
+		PDPageContentStream stream = brewer.getContentStream();
+		if(stream != null) {
+			stream.close();
+		}
+		PDDocument document = brewer.getDocument();
+		Calendar date = Calendar.getInstance();
+		document.getDocumentInformation().setCreationDate(date);
+		document.getDocumentInformation().setModificationDate(date);
+
+		FontResourceCache cache = new FontResourceCache();
+		Map<COSDictionary, COSObject> indirects = new IdentityHashMap<COSDictionary, COSObject>();
+		for(PDPage page : document.getPages()) {
+			PDResources resources = page.getResources();
+			COSDictionary fonts = (resources != null) ? resources.getCOSObject().getCOSDictionary(COSName.FONT) : null;
+			if(fonts == null) {
+				continue;
+			}
+			for(COSName name : fonts.keySet()) {
+				COSBase item = fonts.getItem(name);
+				if(!(item instanceof COSDictionary)) {
+					continue;
+				}
+				COSDictionary dict = (COSDictionary)item;
+				COSObject indirect = indirects.get(dict);
+				if(indirect == null) {
+					PDFont font = brewer.loadFont(dict.getNameAsString(COSName.BASE_FONT));
+					if(font == null || font.getCOSObject() != dict) {
+						continue;
+					}
+					indirect = new COSObject(dict);
+					indirects.put(dict, indirect);
+					cache.fonts.put(indirect, font);
+				}
+				// PDResources は間接参照のフォントだけをリソースキャッシュから取得します。
+				fonts.setItem(name, indirect);
+			}
 		}
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		brewer.process(pb);
-		brewer.save(out);
-		return PDDocument.load(out.toByteArray());
+		return cache;
+	}
+
+	/**
+	 * Image 命令が参照している画像ファイルを返します。参照できない場合は null を返します。
+	 */
+	protected static File getFile(Image image) {
+		return PdfBrewerInternals.getImageFile(image);
 	}
 
 	protected boolean isPdf(Path input) {
@@ -63,8 +611,15 @@ public class DocumentLoader implements Callable<PDDocument> {
 		try(Reader reader = new AutoDetectReader(input)) {
 			Data result = new Data();
 			
-			@SuppressWarnings("unchecked")
-			Map<String, Object> yaml = (Map<String, Object>)new YamlReader(reader).read();
+			Map<String, Object> yaml;
+			StageTimings.Stage yamlStage = timings.start("YAML");
+			try {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> map = (Map<String, Object>)new YamlReader(reader).read();
+				yaml = map;
+			} finally {
+				yamlStage.stop();
+			}
 			
 			Object obj;
 			obj = yaml.get("title");
@@ -76,16 +631,34 @@ public class DocumentLoader implements Callable<PDDocument> {
 				result.author = (String)obj;
 			}
 			
-			StringWriter out = new StringWriter();
-			Template template = getTemplate((String)yaml.get("template"));
-			template.process(yaml, out);
-			result.lines = out.toString();
+			StageTimings.Stage freemarkerStage = timings.start("FreeMarker");
+			try {
+				StringWriter out = new StringWriter();
+				Template template = getTemplate((String)yaml.get("template"));
+				template.process(yaml, out);
+				result.lines = out.toString();
+			} finally {
+				freemarkerStage.stop();
+			}
 			
 			return result;
 		}
 	}
 	
 	protected Template getTemplate(String name) throws IOException {
+		Path dir = getTemplatesDirectory();
+		dependencies.add(dir);
+		return getConfiguration(dir).getTemplate(name);
+	}
+
+	/**
+	 * アプリケーションディレクトリから親ディレクトリを遡って templates フォルダーを探します。
+	 * 見つかったフォルダーは記憶され、削除されない限り次回以降は探索しません。
+	 */
+	protected static synchronized Path getTemplatesDirectory() throws IOException {
+		if(templatesDir != null && Files.isDirectory(templatesDir)) {
+			return templatesDir;
+		}
 		Path path = Datastore.getApplicationDirectory();
 		while(path != null) {
 			Path t = path.resolve("templates");
@@ -98,12 +671,43 @@ public class DocumentLoader implements Callable<PDDocument> {
 		if(path == null) {
 			throw new IOException("templates folder not found.");
 		}
-		Configuration freemarker = new Configuration(Configuration.VERSION_2_3_26);
-		freemarker.setDefaultEncoding("UTF-8");
-		freemarker.setDirectoryForTemplateLoading(path.toFile());
-		return freemarker.getTemplate(name);
+		templatesDir = path;
+		return templatesDir;
+	}
+
+	/**
+	 * テンプレートフォルダーごとに共有される FreeMarker の Configuration を返します。
+	 * 解析済みのテンプレートは Configuration にキャッシュされ、テンプレートファイルの更新日時が変わった場合にだけ再読み込みされます。
+	 */
+	protected static Configuration getConfiguration(Path dir) {
+		return configurations.computeIfAbsent(dir, d -> {
+			Configuration freemarker = new Configuration(Configuration.VERSION_2_3_26);
+			freemarker.setDefaultEncoding("UTF-8");
+			try {
+				freemarker.setDirectoryForTemplateLoading(d.toFile());
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			// プレビュー中にテンプレートを編集しても反映されるように、取得のたびに更新日時を確認します。
+			freemarker.setTemplateUpdateDelayMilliseconds(0);
+			return freemarker;
+		});
 	}
 	
+	/**
+	 * PdfBrewer が読み込んだフォントを保持するリソースキャッシュです。
+	 * DefaultResourceCache はソフト参照で保持するため、フォントだけは強参照で保持します。
+	 */
+	static class FontResourceCache extends DefaultResourceCache {
+		Map<COSObject, PDFont> fonts = new HashMap<COSObject, PDFont>();
+
+		@Override
+		public PDFont getFont(COSObject indirect) throws IOException {
+			PDFont font = fonts.get(indirect);
+			return (font != null) ? font : super.getFont(indirect);
+		}
+	}
+
 	private class Data {
 		String title;
 		String author;
@@ -0,0 +1,153 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 入力ファイルとそれが参照するファイル(テンプレート、画像)の変更を監視します。
+ *
+ * 短い間隔で連続して変更された場合(エディターの保存処理で複数回書き込まれる場合など)は、
+ * 最後の変更から一定時間が経過したときに一度だけリスナーを呼び出します。
+ * リスナーは監視用のスレッドから呼び出されます。
+ */
+public class DocumentWatcher implements Closeable {
+
+	public static final long DEFAULT_DELAY_MILLIS = 200;
+
+	private Runnable listener;
+	private long delayMillis;
+	private WatchService watchService;
+	private Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private Set<Path> files = new HashSet<Path>();
+	private Set<Path> directories = new HashSet<Path>();
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> pending;
+	private Thread thread;
+
+	public DocumentWatcher(Runnable listener) throws IOException {
+		this(listener, DEFAULT_DELAY_MILLIS);
+	}
+
+	public DocumentWatcher(Runnable listener, long delayMillis) throws IOException {
+		this.listener = listener;
+		this.delayMillis = delayMillis;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "DocumentWatcher-Scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		this.thread = new Thread(this::run, "DocumentWatcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * 監視対象を置き換えます。
+	 * ファイルを指定した場合はそのファイルの変更を、ディレクトリを指定した場合はディレクトリ内のすべてのファイルの変更を監視します。
+	 */
+	public synchronized void watch(Collection<Path> paths) throws IOException {
+		unwatch();
+		for(Path path : paths) {
+			path = path.toAbsolutePath().normalize();
+			if(Files.isDirectory(path)) {
+				directories.add(path);
+				register(path);
+			} else {
+				files.add(path);
+				if(path.getParent() != null) {
+					register(path.getParent());
+				}
+			}
+		}
+	}
+
+	/**
+	 * すべての監視を解除します。待機中のリスナー呼び出しも取り消されます。
+	 */
+	public synchronized void unwatch() {
+		for(WatchKey key : keys.keySet()) {
+			key.cancel();
+		}
+		keys.clear();
+		files.clear();
+		directories.clear();
+		if(pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		unwatch();
+		scheduler.shutdownNow();
+		watchService.close();
+	}
+
+	private void register(Path dir) throws IOException {
+		if(keys.containsValue(dir)) {
+			return;
+		}
+		WatchKey key = dir.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		keys.put(key, dir);
+	}
+
+	private void run() {
+		try {
+			for(;;) {
+				WatchKey key = watchService.take();
+				boolean isChanged = false;
+				synchronized(this) {
+					Path dir = keys.get(key);
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(dir == null) {
+							continue;
+						}
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							isChanged = true;
+						} else {
+							Path path = dir.resolve((Path)event.context());
+							if(directories.contains(dir) || files.contains(path)) {
+								isChanged = true;
+							}
+						}
+					}
+					key.reset();
+					if(isChanged) {
+						schedule();
+					}
+				}
+			}
+		} catch(InterruptedException | ClosedWatchServiceException e) {
+			// 監視を終了します。
+		}
+	}
+
+	private void schedule() {
+		if(pending != null) {
+			pending.cancel(false);
+		}
+		pending = scheduler.schedule(listener, delayMillis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,245 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.Context;
+import net.osdn.pdf_brewer.FontLoader;
+import net.osdn.pdf_brewer.Horizontal;
+import net.osdn.pdf_brewer.PdfBrewer;
+import net.osdn.pdf_brewer.Vertical;
+import net.osdn.pdf_brewer.instruction.Image;
+import net.osdn.pdf_brewer.instruction.Instruction;
+import net.osdn.pdf_brewer.instruction.text.TextBufferingInstruction;
+
+/**
+ * PdfBrewer.process と同じ処理を行い、テキストの配置に net.osdn.pdf_brewer.ui.TextBuffer を使用する PdfBrewer です。
+ *
+ * Image 命令の画像はドキュメントごとに 1 つの PDImageXObject を共有するため、同じ画像は一度だけ埋め込まれます。
+ * 画像データは ImageCache によってドキュメントをまたいで再利用されます。
+ */
+public class ExtendedPdfBrewer extends PdfBrewer {
+
+	private Map<ImageCache.Key, PDImageXObject> images = new HashMap<ImageCache.Key, PDImageXObject>();
+
+	public ExtendedPdfBrewer(FontLoader fontLoader) {
+		super(fontLoader);
+	}
+
+	@Override
+	public void process(BrewerData pb) throws IOException {
+		process(new Header(pb.getTitle(), pb.getAuthor(), pb.getMediaBox()), Collections.<Instruction>emptyList(), pb.getInstructions());
+	}
+
+	/**
+	 * prelude の命令で開始時の状態を再現してから pb の命令列を処理します。(IncrementalBrewer のチャンクの生成に使用します。)
+	 * prelude にはトップレベルの状態命令だけを指定してください。
+	 * prelude の命令はコンテキストを変更するだけで、テキストオブジェクトを含めてコンテンツストリームには何も出力しません。
+	 */
+	public void process(BrewerData pb, List<Instruction> prelude) throws IOException {
+		process(new Header(pb.getTitle(), pb.getAuthor(), pb.getMediaBox()), prelude, pb.getInstructions());
+	}
+
+	/**
+	 * .pb ファイルを少しずつ読み込みながら処理します。
+	 */
+	public void process(StreamingBrewerData pb) throws IOException {
+		process(new Header(null, null, pb.getMediaBox()), Collections.<Instruction>emptyList(), pb);
+	}
+
+	private void process(Header header, List<Instruction> prelude, Iterable<Instruction> instructions) throws IOException {
+		// 用紙サイズ、タイトル、作成者の設定と最初のページの追加は PdfBrewer.process に任せます。
+		super.process(header);
+
+		PDRectangle mediaBox = header.getMediaBox();
+		if(mediaBox == null) {
+			mediaBox = PDRectangle.A4;
+		}
+		Deque<Context> stack = new ArrayDeque<Context>();
+		Context context = new Context(new Context(getFontLoader(), mediaBox), 0);
+		TextBuffer textBuffer = createTextBuffer();
+		for(Instruction instruction : prelude) {
+			if(instruction instanceof TextBufferingInstruction) {
+				textBuffer.add((TextBufferingInstruction)instruction);
+				continue;
+			}
+			if(!textBuffer.isEmpty()) {
+				textBuffer.apply(this, context);
+				textBuffer.clear();
+			}
+			instruction.process(this, context);
+		}
+		if(!textBuffer.isEmpty()) {
+			textBuffer.apply(this, context);
+			textBuffer.clear();
+		}
+		try {
+			for(Instruction instruction : instructions) {
+				while(instruction.getIndent() < context.getIndent()) {
+					if(!textBuffer.isEmpty()) {
+						textBuffer.process(this, context);
+						textBuffer.clear();
+					}
+					context = stack.pop();
+				}
+				if(instruction.getIndent() > context.getIndent()) {
+					if(!textBuffer.isEmpty()) {
+						textBuffer.process(this, context);
+						textBuffer.clear();
+					}
+					stack.push(context);
+					context = new Context(context, instruction.getIndent());
+				}
+				if(instruction instanceof TextBufferingInstruction) {
+					textBuffer.add((TextBufferingInstruction)instruction);
+					continue;
+				}
+				if(!textBuffer.isEmpty()) {
+					textBuffer.process(this, context);
+					textBuffer.clear();
+				}
+				if(instruction instanceof Image && processImage((Image)instruction, context)) {
+					continue;
+				}
+				instruction.process(this, context);
+			}
+		} catch(UncheckedIOException e) {
+			// StreamingBrewerData の読み込みで発生した例外です。
+			throw e.getCause();
+		}
+		if(!textBuffer.isEmpty()) {
+			textBuffer.process(this, context);
+			textBuffer.clear();
+		}
+	}
+
+	/**
+	 * net.osdn.pdf_brewer.instruction.Image.process と同じ位置に画像を描画します。
+	 * 画像は getImage で取得します。
+	 * Image 命令の設定を参照できない場合(PdfBrewerInternals.isImageAvailable が false の場合)は何もせずに false を返します。
+	 * その場合、呼び出し側は Image.process で描画してください。
+	 */
+	protected boolean processImage(Image instruction, Context context) throws IOException {
+		if(!PdfBrewerInternals.isImageAvailable()) {
+			return false;
+		}
+		File file = PdfBrewerInternals.getImageFile(instruction);
+		float scale = PdfBrewerInternals.getImageScale(instruction);
+		if(file == null) {
+			return true;
+		}
+		float pageHeight = getPage().getMediaBox().getHeight();
+		PDImageXObject image = getImage(file);
+		float imageWidth = image.getWidth() * scale;
+		float imageHeight = image.getHeight() * scale;
+		Horizontal hAlign = context.getHorizontalAlignment();
+		Vertical vAlign = context.getVerticalAlignment();
+		float ptLeft = Instruction.mm2pt(context.getLeft());
+		float ptTop = Instruction.mm2pt(context.getTop());
+		float ptRight = Instruction.mm2pt(context.getRight());
+		float ptBottom = Instruction.mm2pt(context.getBottom());
+		float ptX = (hAlign == Horizontal.Right) ? (ptRight - imageWidth)
+				: (hAlign == Horizontal.Center) ? (ptLeft + (ptRight - ptLeft - imageWidth) / 2.0f) : ptLeft;
+		float ptY = (vAlign == Vertical.Bottom) ? (ptBottom - imageHeight)
+				: (vAlign == Vertical.Center) ? (ptTop + (ptBottom - ptTop - imageHeight) / 2.0f) : ptTop;
+		PDPageContentStream stream = getContentStream();
+		stream.drawImage(image, ptX, pageHeight - ptY - imageHeight, imageWidth, imageHeight);
+		return true;
+	}
+
+	/**
+	 * 画像ファイルの PDImageXObject を返します。
+	 * 同じドキュメントで同じ画像ファイル(パス、サイズ、更新日時が同じファイル)が使われた場合は同じ PDImageXObject を返します。
+	 */
+	protected PDImageXObject getImage(File file) throws IOException {
+		ImageCache.Key key = new ImageCache.Key(file);
+		PDImageXObject image = images.get(key);
+		if(image == null) {
+			ImageCache cache = ImageCache.getDefault();
+			image = cache.get(key, getDocument());
+			if(image == null) {
+				image = PDImageXObject.createFromFileByContent(file, getDocument());
+				cache.put(key, image);
+			}
+			images.put(key, image);
+		}
+		return image;
+	}
+
+	/**
+	 * 生成する PDDocument の作業領域を設定します。process を呼び出す前に使用してください。
+	 *
+	 * PdfBrewer はコンストラクターで作業領域をメインメモリーとする PDDocument を生成します。
+	 * 作業領域に一時ファイルを使用すると、描画が終わったページのコンテンツストリームはヒープではなく一時ファイルに保持されます。
+	 * PdfBrewer は PDDocument を設定する手段を公開していないので、PdfBrewerInternals で置き換えます。
+	 * 置き換えられない場合(PdfBrewerInternals.isDocumentAvailable が false の場合)は何もせずに false を返します。
+	 * その場合、PDDocument の作業領域はメインメモリーのままです。
+	 */
+	public boolean setMemoryUsageSetting(MemoryUsageSetting setting) throws IOException {
+		if(!PdfBrewerInternals.isDocumentAvailable()) {
+			return false;
+		}
+		PDDocument oldDocument = PdfBrewerInternals.getDocument(this);
+		PDDocument newDocument = new PDDocument(setting);
+		try {
+			newDocument.getDocumentInformation().setProducer(oldDocument.getDocumentInformation().getProducer());
+			newDocument.getDocumentInformation().setCreator(oldDocument.getDocumentInformation().getCreator());
+			PdfBrewerInternals.setDocument(this, newDocument);
+		} catch(RuntimeException e) {
+			newDocument.close();
+			throw e;
+		}
+		oldDocument.close();
+		images.clear();
+		return true;
+	}
+
+	protected TextBuffer createTextBuffer() {
+		return new TextBuffer();
+	}
+
+	/**
+	 * 命令を含まず、用紙サイズ、タイトル、作成者だけを返す BrewerData です。(PdfBrewer.process に渡します。)
+	 */
+	private static class Header extends BrewerData {
+		private String title;
+		private String author;
+		private PDRectangle mediaBox;
+
+		Header(String title, String author, PDRectangle mediaBox) throws IOException {
+			super(Collections.<String>emptyList(), null);
+			this.title = title;
+			this.author = author;
+			this.mediaBox = mediaBox;
+		}
+
+		@Override
+		public String getTitle() {
+			return title;
+		}
+
+		@Override
+		public String getAuthor() {
+			return author;
+		}
+
+		@Override
+		public PDRectangle getMediaBox() {
+			return mediaBox;
+		}
+	}
+}
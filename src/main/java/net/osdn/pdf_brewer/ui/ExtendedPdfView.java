@@ -0,0 +1,600 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.PageDrawer;
+import org.apache.pdfbox.rendering.PageDrawerParameters;
+
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import net.osdn.util.javafx.scene.control.pdf.PdfView;
+
+/**
+ * ページの描画結果をキャッシュし、前後のページを先読みして描画する PdfView です。
+ *
+ * 表示中のページを描画した後、前後 lookAhead ページを同じ描画領域のサイズで描画して PageCache に保持します。
+ * キャッシュされたページはすぐに表示されます。
+ * 先読みは PdfView のワーカースレッドで 1 ページずつ実行されるため、表示中のページの描画を待たせるのは描画中の 1 ページだけです。
+ * (PDDocument はスレッドセーフではないため、別のスレッドでは描画しません。)
+ * 描画に使用する BufferedImage (TYPE_INT_ARGB_PRE)は RasterPool で再利用し、画素は WritableImage に直接書き込みます。
+ * ドキュメントが変わったとき、描画領域のサイズが変わったときはキャッシュを破棄します。
+ *
+ * 画像を含むページや、直前の描画に時間がかかったドキュメントのページは段階的に描画します。
+ * まず 1/4 の解像度でアンチエイリアスなしに描画して表示し、続けて通常の品質で描画します。
+ * 通常の品質で描画している間にページが切り替わった場合、その描画は中止されます。
+ *
+ * ページの描画(ラスタライズ)にかかった時間は timings に「描画」として記録し、lastRender を更新します。
+ * 描画は Java Flight Recorder にも FlightRecorderEvents.PageRender として記録されます。
+ *
+ * PdfView は描画するドキュメントやページ、描画領域のサイズを公開していないので、リフレクションで取得します。
+ * 取得できない場合はキャッシュと先読みを使用せずに PdfView の描画処理をそのまま使用します。
+ */
+public class ExtendedPdfView extends PdfView {
+
+	public static final String RENDER_STAGE = "描画";
+	public static final int DEFAULT_LOOK_AHEAD = 2;
+
+	/** 段階的に描画するときの最初の描画の解像度の比率です。 */
+	private static final double PREVIEW_RATIO = 0.25;
+
+	/** 直前の描画にこの時間以上かかった場合は、画像を含まないページも段階的に描画します。 */
+	private static final long PROGRESSIVE_THRESHOLD_NANOS = 200L * 1000000;
+
+	/** 描画に使用する BufferedImage を保持する上限です。(表示中のページと先読み、段階的な描画の拡大用に数枚を再利用できる大きさです。) */
+	private static final long RASTER_POOL_SIZE = 64L * 1024 * 1024;
+
+	private static final RenderingHints PREVIEW_HINTS = new RenderingHints(null);
+
+	static {
+		PREVIEW_HINTS.put(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+		PREVIEW_HINTS.put(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+		PREVIEW_HINTS.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+		PREVIEW_HINTS.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+	}
+
+	private static final Field documentField = getField("document");
+	private static final Field pageIndexField = getField("pageIndex");
+	private static final Field widthField = getField("width");
+	private static final Field heightField = getField("height");
+	private static final Field scaleField = getField("scale");
+	private static final Field workerField = getField("worker");
+	private static final Field canvasField = getField("canvas");
+
+	private static Field getField(String name) {
+		try {
+			Field field = PdfView.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private ObjectProperty<StageTimings> timingsProperty = new SimpleObjectProperty<StageTimings>(this, "timings");
+	private ReadOnlyObjectWrapper<StageTimings.Entry> lastRenderProperty = new ReadOnlyObjectWrapper<StageTimings.Entry>(this, "lastRender");
+	private IntegerProperty lookAheadProperty = new SimpleIntegerProperty(this, "lookAhead", DEFAULT_LOOK_AHEAD);
+	private BooleanProperty progressiveProperty = new SimpleBooleanProperty(this, "progressive", true);
+	private PageCache cache = new PageCache(PageCache.getDefaultMaxSize());
+	private RasterPool rasters = new RasterPool(BufferedImage.TYPE_INT_ARGB_PRE, RASTER_POOL_SIZE);
+	private AtomicReference<LookAhead> lookAhead = new AtomicReference<LookAhead>();
+	private AtomicInteger renderSerial = new AtomicInteger();
+	private volatile long lastRenderNanos;
+
+	public ExtendedPdfView() {
+		// 表示するページが変わったら描画中のページの描画を中止します。
+		pageIndexProperty().addListener((observable, oldValue, newValue) -> renderSerial.incrementAndGet());
+		documentProperty().addListener((observable, oldValue, newValue) -> {
+			renderSerial.incrementAndGet();
+			lastRenderNanos = 0;
+			// 新しいドキュメントの描画はこのリスナーより先に開始されている可能性があるので、それ以外を破棄します。
+			LookAhead current = lookAhead.get();
+			if(current != null && current.document != newValue) {
+				lookAhead.compareAndSet(current, null);
+			}
+			cache.retain(newValue);
+		});
+		widthProperty().addListener((observable, oldValue, newValue) -> invalidate());
+		heightProperty().addListener((observable, oldValue, newValue) -> invalidate());
+	}
+
+	public ObjectProperty<StageTimings> timingsProperty() {
+		return timingsProperty;
+	}
+
+	public final StageTimings getTimings() {
+		return timingsProperty.get();
+	}
+
+	public final void setTimings(StageTimings value) {
+		timingsProperty.set(value);
+	}
+
+	public ReadOnlyObjectProperty<StageTimings.Entry> lastRenderProperty() {
+		return lastRenderProperty.getReadOnlyProperty();
+	}
+
+	public final StageTimings.Entry getLastRender() {
+		return lastRenderProperty.get();
+	}
+
+	/**
+	 * 表示中のページの前後それぞれ何ページを先読みするかを表します。0 の場合は先読みしません。
+	 */
+	public IntegerProperty lookAheadProperty() {
+		return lookAheadProperty;
+	}
+
+	public final int getLookAhead() {
+		return lookAheadProperty.get();
+	}
+
+	public final void setLookAhead(int value) {
+		lookAheadProperty.set(value);
+	}
+
+	/**
+	 * 画像を含むページなどを低い解像度で描画してから通常の品質で描画し直すかどうかを表します。
+	 */
+	public BooleanProperty progressiveProperty() {
+		return progressiveProperty;
+	}
+
+	public final boolean isProgressive() {
+		return progressiveProperty.get();
+	}
+
+	public final void setProgressive(boolean value) {
+		progressiveProperty.set(value);
+	}
+
+	public PageCache getPageCache() {
+		return cache;
+	}
+
+	/**
+	 * 先読みを中止してキャッシュと再利用する BufferedImage を破棄します。
+	 */
+	public void invalidate() {
+		renderSerial.incrementAndGet();
+		lookAhead.set(null);
+		cache.clear();
+		rasters.clear();
+	}
+
+	@Override
+	protected WritableImage prepare() {
+		PDDocument document;
+		int pageIndex;
+		double width;
+		double height;
+		try {
+			document = (PDDocument)documentField.get(this);
+			pageIndex = pageIndexField.getInt(this);
+			width = widthField.getDouble(this);
+			height = heightField.getDouble(this);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return prepareWithoutCache();
+		}
+		if(document == null || scaleField == null) {
+			lookAhead.set(null);
+			return prepareWithoutCache();
+		}
+
+		StageTimings timings = getTimings();
+		FlightRecorderEvents.PageRender event = new FlightRecorderEvents.PageRender();
+		long startBytes = StageTimings.getAllocatedBytes();
+		long startNanos = System.nanoTime();
+		PageCache.Page page = cache.get(document, pageIndex, (int)width, (int)height);
+		boolean isCached = (page != null);
+		if(!isCached) {
+			int serial = renderSerial.get();
+			PageCache.Page preview = null;
+			boolean isCancelled = false;
+			event.begin();
+			try {
+				if(isProgressive() && isSlow(document, pageIndex)) {
+					preview = renderPreview(document, pageIndex, width, height);
+					showPreview(preview, serial);
+				}
+				page = render(document, pageIndex, width, height, () -> renderSerial.get() != serial);
+			} catch(CancellationException e) {
+				// ページが切り替わりました。すぐに次のページが描画されるので、低い解像度の画像があればそれを返します。
+				page = preview;
+				isCancelled = true;
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end();
+			if(isCancelled) {
+				// 中止したページは記録もキャッシュもしません。
+				setScale((page != null) ? page.getScale() : 0.0);
+				return (page != null) ? page.getImage() : null;
+			}
+			if(page != null) {
+				lastRenderNanos = System.nanoTime() - startNanos;
+				cache.put(document, pageIndex, (int)width, (int)height, page);
+			}
+		}
+		long nanos = System.nanoTime() - startNanos;
+		long bytes = (startBytes < 0) ? -1 : (StageTimings.getAllocatedBytes() - startBytes);
+		setScale((page != null) ? page.getScale() : 0.0);
+		if(page == null) {
+			return null;
+		}
+
+		StageTimings.Entry entry = new StageTimings.Entry(RENDER_STAGE, nanos, bytes);
+		if(timings != null) {
+			timings.record(RENDER_STAGE, nanos, bytes);
+		}
+		Platform.runLater(() -> lastRenderProperty.set(entry));
+		if(!isCached && event.shouldCommit()) {
+			event.input = (timings != null) ? timings.getInput() : null;
+			event.pageIndex = pageIndex;
+			event.width = (int)page.getImage().getWidth();
+			event.height = (int)page.getImage().getHeight();
+			event.scale = page.getScale();
+			event.allocated = bytes;
+			event.commit();
+		}
+
+		startLookAhead(document, pageIndex, width, height);
+		return page.getImage();
+	}
+
+	private void setScale(double scale) {
+		try {
+			scaleField.setDouble(this, scale);
+		} catch(ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * PdfView の描画処理で描画します。(キャッシュも先読みも使用しません。)
+	 */
+	private WritableImage prepareWithoutCache() {
+		StageTimings timings = getTimings();
+		FlightRecorderEvents.PageRender event = new FlightRecorderEvents.PageRender();
+		long startBytes = StageTimings.getAllocatedBytes();
+		long startNanos = System.nanoTime();
+		event.begin();
+		WritableImage image = super.prepare();
+		event.end();
+		long nanos = System.nanoTime() - startNanos;
+		long bytes = (startBytes < 0) ? -1 : (StageTimings.getAllocatedBytes() - startBytes);
+		if(image != null) {
+			StageTimings.Entry entry = new StageTimings.Entry(RENDER_STAGE, nanos, bytes);
+			if(timings != null) {
+				timings.record(RENDER_STAGE, nanos, bytes);
+			}
+			Platform.runLater(() -> lastRenderProperty.set(entry));
+
+			if(event.shouldCommit()) {
+				event.input = (timings != null) ? timings.getInput() : null;
+				event.pageIndex = getPageIndex();
+				event.width = (int)image.getWidth();
+				event.height = (int)image.getHeight();
+				event.scale = getRenderScale();
+				event.allocated = bytes;
+				event.commit();
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * ページを描画領域に収まる大きさで描画します。描画領域が空の場合は null を返します。
+	 * PdfView.prepare と同じ方法で描画しますが、ページごとに新しい WritableImage を作成します。
+	 */
+	protected PageCache.Page render(PDDocument document, int pageIndex, double width, double height) throws IOException {
+		return render(document, pageIndex, width, height, null);
+	}
+
+	/**
+	 * ページを描画します。isCancelled が true を返すと、描画命令の境界で CancellationException をスローして中止します。
+	 */
+	protected PageCache.Page render(PDDocument document, int pageIndex, double width, double height, BooleanSupplier isCancelled) throws IOException {
+		Fit fit = new Fit(document.getPage(pageIndex).getCropBox(), width, height);
+		if(fit.width <= 0 || fit.height <= 0) {
+			return null;
+		}
+		BufferedImage bimg = rasters.acquire(fit.width, fit.height);
+		try {
+			rasterize(bimg, document, pageIndex, fit.scale, getRenderingHints(), isCancelled);
+			return new PageCache.Page(toFXImage(bimg), fit.scale);
+		} finally {
+			rasters.release(bimg);
+		}
+	}
+
+	/**
+	 * ページを PREVIEW_RATIO の解像度でアンチエイリアスなしに描画し、描画領域に収まる大きさに拡大して返します。
+	 * 画像は縮小して読み込まれます。(サブサンプリング)
+	 */
+	protected PageCache.Page renderPreview(PDDocument document, int pageIndex, double width, double height) throws IOException {
+		Fit fit = new Fit(document.getPage(pageIndex).getCropBox(), width, height);
+		int w = (int)(fit.width * PREVIEW_RATIO);
+		int h = (int)(fit.height * PREVIEW_RATIO);
+		if(w <= 0 || h <= 0) {
+			return null;
+		}
+		BufferedImage small = rasters.acquire(w, h);
+		BufferedImage bimg = null;
+		try {
+			rasterize(small, document, pageIndex, fit.scale * PREVIEW_RATIO, PREVIEW_HINTS, null);
+			bimg = rasters.acquire(fit.width, fit.height);
+			Graphics2D graphics = bimg.createGraphics();
+			try {
+				graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				graphics.drawImage(small, 0, 0, fit.width, fit.height, null);
+			} finally {
+				graphics.dispose();
+			}
+			return new PageCache.Page(toFXImage(bimg), fit.scale);
+		} finally {
+			rasters.release(small);
+			rasters.release(bimg);
+		}
+	}
+
+	/**
+	 * bimg を白で消去してからページを描画します。
+	 */
+	private void rasterize(BufferedImage bimg, PDDocument document, int pageIndex, double scale,
+			RenderingHints hints, BooleanSupplier isCancelled) throws IOException {
+		Graphics2D graphics = bimg.createGraphics();
+		try {
+			graphics.setBackground(Color.WHITE);
+			graphics.clearRect(0, 0, bimg.getWidth(), bimg.getHeight());
+			PDFRenderer renderer = new Renderer(document, isCancelled);
+			if(hints != null) {
+				renderer.setRenderingHints(hints);
+			}
+			renderer.setSubsamplingAllowed(hints == PREVIEW_HINTS);
+			renderer.renderPageToGraphics(pageIndex, graphics, (float)scale);
+		} finally {
+			graphics.dispose();
+		}
+	}
+
+	/**
+	 * RasterPool の BufferedImage の画素を新しい WritableImage に直接書き込みます。
+	 * SwingFXUtils.toFXImage と違い、変換用の BufferedImage を作成しません。
+	 *
+	 * WritableImage の画素は乗算済みアルファ(BYTE_BGRA_PRE)で保持されるため、
+	 * 乗算済みアルファの TYPE_INT_ARGB_PRE で描画しておくと、画素ごとの変換をせずにそのまま複写されます。
+	 * (JavaFX 13 以降の PixelBuffer を使用すれば複写も不要になりますが、JavaFX 11 では使用できません。)
+	 */
+	static WritableImage toFXImage(BufferedImage bimg) {
+		int width = bimg.getWidth();
+		int height = bimg.getHeight();
+		int[] data = ((DataBufferInt)bimg.getRaster().getDataBuffer()).getData();
+		PixelFormat<IntBuffer> format = (bimg.getType() == BufferedImage.TYPE_INT_ARGB_PRE)
+				? PixelFormat.getIntArgbPreInstance()
+				: PixelFormat.getIntArgbInstance();
+		WritableImage wimg = new WritableImage(width, height);
+		wimg.getPixelWriter().setPixels(0, 0, width, height, format, data, 0, width);
+		return wimg;
+	}
+
+	/**
+	 * 段階的に描画するページかどうかを返します。
+	 * ページに画像が含まれている場合と、このドキュメントの直前の描画に時間がかかった場合に true を返します。
+	 */
+	protected boolean isSlow(PDDocument document, int pageIndex) {
+		if(lastRenderNanos >= PROGRESSIVE_THRESHOLD_NANOS) {
+			return true;
+		}
+		PDPage page = document.getPage(pageIndex);
+		PDResources resources = page.getResources();
+		if(resources != null) {
+			for(COSName name : resources.getXObjectNames()) {
+				if(resources.isImageXObject(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 低い解像度で描画した画像を表示します。(PdfView が描画結果を表示するのと同じ位置に表示します。)
+	 * 表示する前にページが切り替わった場合は表示しません。
+	 */
+	private void showPreview(PageCache.Page preview, int serial) {
+		if(preview == null || canvasField == null) {
+			return;
+		}
+		WritableImage img = preview.getImage();
+		Platform.runLater(() -> {
+			if(renderSerial.get() != serial) {
+				return;
+			}
+			try {
+				Canvas canvas = (Canvas)canvasField.get(this);
+				GraphicsContext gc = canvas.getGraphicsContext2D();
+				gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+				double x = (canvas.getWidth() - img.getWidth()) / 2;
+				double y = (canvas.getHeight() - img.getHeight()) / 2;
+				gc.drawImage(img, x, y);
+			} catch(ReflectiveOperationException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * 表示中のページの次のページ、前のページ、2 つ先のページ、2 つ前のページ…の順に先読みを開始します。
+	 * 実行中の先読みは中止されます。
+	 */
+	private void startLookAhead(PDDocument document, int pageIndex, double width, double height) {
+		int n = Math.max(0, getLookAhead());
+		int count = document.getNumberOfPages();
+		int[] pages = new int[n * 2];
+		int size = 0;
+		for(int d = 1; d <= n; d++) {
+			if(pageIndex + d < count) {
+				pages[size++] = pageIndex + d;
+			}
+			if(pageIndex - d >= 0) {
+				pages[size++] = pageIndex - d;
+			}
+		}
+		if(size == 0) {
+			lookAhead.set(null);
+			return;
+		}
+		LookAhead task = new LookAhead(document, width, height, pages, size);
+		lookAhead.set(task);
+		submit(task);
+	}
+
+	/**
+	 * PdfView のワーカースレッドで task を実行します。
+	 * 表示中のページの描画や先読みと同じスレッドで順番に実行されるため、task では表示中の PDDocument を使用できます。
+	 * 描画を長く待たせないように、task は短い処理に分けて投入してください。
+	 */
+	public void execute(Runnable task) {
+		submit(task);
+	}
+
+	private void submit(Runnable task) {
+		try {
+			((ExecutorService)workerField.get(this)).execute(task);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 描画領域に収まるページの大きさ(ピクセル)と倍率です。PdfView.prepare と同じ方法で求めます。
+	 */
+	private static class Fit {
+		final int width;
+		final int height;
+		final double scale;
+
+		Fit(PDRectangle paper, double width, double height) {
+			double w;
+			double h;
+			if(paper.getWidth() / paper.getHeight() < width / height) {
+				w = height * paper.getWidth() / paper.getHeight();
+				h = height;
+			} else {
+				w = width;
+				h = width * paper.getHeight() / paper.getWidth();
+			}
+			this.width = (int)w;
+			this.height = (int)h;
+			this.scale = h / paper.getHeight();
+		}
+	}
+
+	/**
+	 * 描画命令ごとに中止を確認する PDFRenderer です。
+	 * (1 つの描画命令の処理、たとえば大きな画像のデコードは途中で中止できません。)
+	 */
+	private static class Renderer extends PDFRenderer {
+		private final BooleanSupplier isCancelled;
+
+		Renderer(PDDocument document, BooleanSupplier isCancelled) {
+			super(document);
+			this.isCancelled = isCancelled;
+		}
+
+		@Override
+		protected PageDrawer createPageDrawer(PageDrawerParameters parameters) throws IOException {
+			if(isCancelled == null) {
+				return super.createPageDrawer(parameters);
+			}
+			return new PageDrawer(parameters) {
+				@Override
+				protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+					if(isCancelled.getAsBoolean()) {
+						throw new CancellationException();
+					}
+					super.processOperator(operator, operands);
+				}
+			};
+		}
+	}
+
+	/**
+	 * ページを 1 つ描画するたびにワーカースレッドに再投入される先読みです。
+	 * 新しい先読みが開始されると、次の投入時に中止されます。
+	 */
+	private class LookAhead implements Runnable {
+		private final PDDocument document;
+		private final double width;
+		private final double height;
+		private final int[] pages;
+		private final int size;
+		private int next;
+
+		LookAhead(PDDocument document, double width, double height, int[] pages, int size) {
+			this.document = document;
+			this.width = width;
+			this.height = height;
+			this.pages = pages;
+			this.size = size;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(next < size) {
+					if(lookAhead.get() != this || document.getDocument().isClosed()) {
+						return;
+					}
+					int pageIndex = pages[next++];
+					if(cache.contains(document, pageIndex, (int)width, (int)height)) {
+						continue;
+					}
+					PageCache.Page page = render(document, pageIndex, width, height);
+					if(page != null && lookAhead.get() == this) {
+						cache.put(document, pageIndex, (int)width, (int)height, page);
+					}
+					if(next < size) {
+						submit(this);
+					}
+					return;
+				}
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
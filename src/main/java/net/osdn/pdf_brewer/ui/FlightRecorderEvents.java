@@ -0,0 +1,122 @@
+package net.osdn.pdf_brewer.ui;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder に記録するイベントです。
+ *
+ * 記録中でなければイベントは破棄されるため、常に生成して構いません。
+ * 記録するには -XX:StartFlightRecording などで記録を開始してください。
+ */
+public final class FlightRecorderEvents {
+
+	private static final String CATEGORY = "PDF BREWER";
+
+	private FlightRecorderEvents() {
+	}
+
+	/**
+	 * DocumentLoader.call による入力ファイルの読み込みです。
+	 */
+	@Name("net.osdn.pdf_brewer.DocumentLoad")
+	@Label("Document Load")
+	@Description("Loading an input file (.pdf, .pb, .yml) for preview")
+	@Category(CATEGORY)
+	public static class DocumentLoad extends Event {
+		@Label("Input")
+		public String input;
+
+		@Label("Type")
+		@Description("pdf, pb or yml")
+		public String type;
+
+		@Label("Input Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("Pages")
+		public int pages;
+
+		@Label("Rebuilt Pages")
+		@Description("Pages that may have changed since the previous load")
+		public int dirtyPages;
+
+		@Label("Succeeded")
+		public boolean succeeded;
+	}
+
+	/**
+	 * DocumentLoader の処理段階(YAML、FreeMarker、解析、レイアウト、PDF 読み込み、保存)です。
+	 */
+	@Name("net.osdn.pdf_brewer.Stage")
+	@Label("Document Stage")
+	@Description("A pipeline stage inside DocumentLoader")
+	@Category(CATEGORY)
+	public static class Stage extends Event {
+		@Label("Input")
+		public String input;
+
+		@Label("Stage")
+		public String stage;
+
+		@Label("Allocated")
+		@Description("Bytes allocated by the thread that ran the stage")
+		@DataAmount
+		public long allocated;
+	}
+
+	/**
+	 * FontLoader.load によるフォントファイルの読み込みです。
+	 */
+	@Name("net.osdn.pdf_brewer.FontLoad")
+	@Label("Font Load")
+	@Description("Parsing font files in FontLoader.load")
+	@Category(CATEGORY)
+	public static class FontLoad extends Event {
+		@Label("Directory")
+		public String directory;
+
+		@Label("Files")
+		@Description("Requested file names, or * for every file in the directory")
+		public String files;
+
+		@Label("Files Size")
+		@DataAmount
+		public long bytes;
+	}
+
+	/**
+	 * PdfView によるページのラスタライズです。
+	 */
+	@Name("net.osdn.pdf_brewer.PageRender")
+	@Label("Page Render")
+	@Description("Rasterizing a page in PdfView")
+	@Category(CATEGORY)
+	public static class PageRender extends Event {
+		@Label("Input")
+		public String input;
+
+		@Label("Page Index")
+		public int pageIndex;
+
+		@Label("Width")
+		@Description("Width of the rendered image in pixels")
+		public int width;
+
+		@Label("Height")
+		@Description("Height of the rendered image in pixels")
+		public int height;
+
+		@Label("Scale")
+		public double scale;
+
+		@Label("Allocated")
+		@DataAmount
+		public long allocated;
+	}
+}
@@ -0,0 +1,133 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * FontLoader をプロセス全体で共有するためのプールです。
+ *
+ * FontLoader はフォントファイルを解析するため生成に時間がかかります。
+ * 一度生成した FontLoader は release で返却されたあとも保持され、次の acquire で再利用されます。
+ *
+ * FontLoader が保持する TrueTypeFont は PDType0Font のサブセット化で読み取られるため、
+ * 1 つの FontLoader を同時に使用できるのは 1 つのドキュメントだけです。
+ * 同時に複数のドキュメントを生成する場合は、その数だけ FontLoader が生成されます。
+ *
+ * フォントフォルダーの内容(ファイル名、サイズ、更新日時)が変化した場合、
+ * 保持している FontLoader は破棄され、次の acquire で新しい FontLoader が生成されます。
+ */
+public class FontLoaderPool {
+
+	private static FontLoaderPool defaultPool;
+
+	public static synchronized FontLoaderPool getDefault() {
+		if(defaultPool == null) {
+			defaultPool = new FontLoaderPool(FontLoader.getDefaultFontDir());
+		}
+		return defaultPool;
+	}
+
+	private File fontDir;
+	private int maxIdle;
+	private long signature;
+	private Deque<FontLoader> idle = new ArrayDeque<FontLoader>();
+	private Map<FontLoader, Long> signatures = new IdentityHashMap<FontLoader, Long>();
+
+	public FontLoaderPool(File fontDir) {
+		this(fontDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	public FontLoaderPool(File fontDir, int maxIdle) {
+		this.fontDir = fontDir;
+		this.maxIdle = Math.max(1, maxIdle);
+	}
+
+	public File getFontDirectory() {
+		return fontDir;
+	}
+
+	/**
+	 * FontLoader を取得します。
+	 * 使用後は必ず release を呼び出してください。
+	 */
+	public FontLoader acquire() {
+		long current = getSignature();
+		synchronized(this) {
+			if(current != signature) {
+				clear();
+				signature = current;
+			}
+			FontLoader loader = idle.pollFirst();
+			if(loader != null) {
+				return loader;
+			}
+		}
+
+		// フォントの解析には時間がかかるのでロックの外で生成します。
+		FontLoader loader = new IndexedFontLoader(fontDir);
+		synchronized(this) {
+			signatures.put(loader, current);
+		}
+		return loader;
+	}
+
+	/**
+	 * acquire で取得した FontLoader を返却します。
+	 * フォントフォルダーが変更されていた場合や保持数の上限を超える場合は FontLoader を閉じます。
+	 */
+	public synchronized void release(FontLoader loader) {
+		if(loader == null || idle.contains(loader)) {
+			return;
+		}
+		Long s = signatures.get(loader);
+		if(s == null) {
+			return;
+		}
+		if(s == signature && idle.size() < maxIdle) {
+			idle.addFirst(loader);
+		} else {
+			signatures.remove(loader);
+			loader.close();
+		}
+	}
+
+	/**
+	 * 保持している FontLoader をすべて閉じます。
+	 * 貸し出し中の FontLoader は返却時に閉じられます。
+	 */
+	public synchronized void clear() {
+		for(FontLoader loader : idle) {
+			signatures.remove(loader);
+			loader.close();
+		}
+		idle.clear();
+		signature = 0;
+	}
+
+	protected long getSignature() {
+		if(fontDir == null) {
+			return 1;
+		}
+		File[] files = fontDir.listFiles((dir, name) -> {
+			String s = name.toLowerCase();
+			return s.endsWith(".ttf") || s.endsWith(".ttc");
+		});
+		if(files == null) {
+			return 1;
+		}
+		Arrays.sort(files);
+		long h = 17;
+		for(File file : files) {
+			h = h * 31 + file.getName().hashCode();
+			h = h * 31 + file.length();
+			h = h * 31 + file.lastModified();
+		}
+		return (h == 0) ? 1 : h;
+	}
+}
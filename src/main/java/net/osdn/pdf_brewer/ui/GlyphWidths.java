@@ -0,0 +1,124 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+/**
+ * フォントのコードポイントごとの幅(1/1000 em 単位)を保持するキャッシュです。
+ *
+ * PDFont.getStringWidth は呼び出しのたびに文字列をエンコードしてバイト配列を生成するため、
+ * 行の分割のように部分文字列の幅を何度も求める処理では時間がかかります。
+ * PDFont.getStringWidth はコードポイントごとの幅を順に合計した値なので、
+ * コードポイントごとの幅をキャッシュしておけば同じ値をメモリーを確保せずに求められます。
+ *
+ * 基本多言語面(BMP)の文字は 256 文字ごとに確保する配列で、それ以外の文字はオープンアドレス法のハッシュテーブルで保持します。
+ * スレッドセーフではありません。
+ */
+public class GlyphWidths {
+
+	private static final int PAGE_BITS = 8;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private PDFont font;
+	private float[][] pages = new float[0x10000 >>> PAGE_BITS][];
+	private int[] keys = new int[16];
+	private float[] values = new float[16];
+	private int size;
+
+	public GlyphWidths(PDFont font) {
+		this.font = font;
+	}
+
+	public PDFont getFont() {
+		return font;
+	}
+
+	/**
+	 * コードポイントの幅を 1/1000 em 単位で返します。
+	 */
+	public float getWidth(int codePoint) throws IOException {
+		if(codePoint < 0x10000) {
+			float[] page = pages[codePoint >>> PAGE_BITS];
+			if(page == null) {
+				page = new float[PAGE_SIZE];
+				Arrays.fill(page, Float.NaN);
+				pages[codePoint >>> PAGE_BITS] = page;
+			}
+			float width = page[codePoint & PAGE_MASK];
+			if(Float.isNaN(width)) {
+				width = measure(codePoint);
+				page[codePoint & PAGE_MASK] = width;
+			}
+			return width;
+		}
+
+		// 補助文字はコードポイントが 0 になることがないので、キーの 0 を空きとして扱います。
+		int mask = keys.length - 1;
+		int i = mix(codePoint) & mask;
+		while(keys[i] != 0) {
+			if(keys[i] == codePoint) {
+				return values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		float width = measure(codePoint);
+		keys[i] = codePoint;
+		values[i] = width;
+		if(++size * 2 > keys.length) {
+			rehash();
+		}
+		return width;
+	}
+
+	/**
+	 * text の begin から end までの幅を 1/1000 em 単位で返します。
+	 * PDFont.getStringWidth(text.substring(begin, end)) と同じ値になります。
+	 */
+	public float getStringWidth(CharSequence text, int begin, int end) throws IOException {
+		float width = 0.0f;
+		int i = begin;
+		while(i < end) {
+			char c = text.charAt(i++);
+			int codePoint = c;
+			if(Character.isHighSurrogate(c) && i < end) {
+				char d = text.charAt(i);
+				if(Character.isLowSurrogate(d)) {
+					codePoint = Character.toCodePoint(c, d);
+					i++;
+				}
+			}
+			width += getWidth(codePoint);
+		}
+		return width;
+	}
+
+	protected float measure(int codePoint) throws IOException {
+		return font.getStringWidth(new String(Character.toChars(codePoint)));
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		float[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new float[oldValues.length * 2];
+		int mask = keys.length - 1;
+		for(int j = 0; j < oldKeys.length; j++) {
+			if(oldKeys[j] != 0) {
+				int i = mix(oldKeys[j]) & mask;
+				while(keys[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	private static int mix(int x) {
+		x *= 0x9E3779B9;
+		return x ^ (x >>> 16);
+	}
+}
@@ -0,0 +1,226 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * 画像ファイルから生成した PDImageXObject のデータをドキュメントをまたいで保持する LRU キャッシュです。
+ *
+ * PDImageXObject.createFromFileByContent は PNG などの画像をデコードして Flate で圧縮し直すため時間がかかります。
+ * ImageCache は圧縮済みのストリームと辞書をどのドキュメントにも属さない形でコピーして保持し、
+ * 同じ画像ファイル(パス、サイズ、更新日時が同じファイル)が別のドキュメントで使われたときは、
+ * デコードや圧縮をせずにそのドキュメントへコピーします。
+ *
+ * 保持するデータの合計サイズがシステムプロパティ {@value #MAX_SIZE_PROPERTY} (MB 単位、既定値は 64)を超えると、
+ * 最も長い間使われていない画像から破棄します。
+ */
+public class ImageCache {
+
+	public static final String MAX_SIZE_PROPERTY = "pdf-brewer.image-cache";
+	private static final long DEFAULT_MAX_SIZE_MB = 64;
+
+	private static ImageCache defaultCache;
+
+	public static synchronized ImageCache getDefault() {
+		if(defaultCache == null) {
+			long mb = DEFAULT_MAX_SIZE_MB;
+			try {
+				mb = Long.parseLong(System.getProperty(MAX_SIZE_PROPERTY, Long.toString(DEFAULT_MAX_SIZE_MB)).trim());
+			} catch(NumberFormatException e) {
+				e.printStackTrace();
+			}
+			defaultCache = new ImageCache(Math.max(0, mb) * 1024 * 1024);
+		}
+		return defaultCache;
+	}
+
+	private long maxSize;
+	private long size;
+	private Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	public ImageCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * キャッシュされている画像を document にコピーして返します。キャッシュされていない場合は null を返します。
+	 */
+	public PDImageXObject get(Key key, PDDocument document) throws IOException {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+		}
+		if(entry == null) {
+			return null;
+		}
+		synchronized(entry) {
+			if(entry.stream == null) {
+				// 取得した直後に破棄されました。
+				return null;
+			}
+			COSStream stream = (COSStream)copy(entry.stream, document);
+			return new PDImageXObject(new PDStream(stream), null);
+		}
+	}
+
+	/**
+	 * document に生成した画像をキャッシュに追加します。
+	 */
+	public void put(Key key, PDImageXObject image) throws IOException {
+		if(maxSize <= 0) {
+			return;
+		}
+		COSStream stream = (COSStream)copy(image.getCOSObject(), null);
+		long length = getLength(stream);
+		if(length > maxSize) {
+			stream.close();
+			return;
+		}
+		Entry entry = new Entry(stream, length);
+		synchronized(this) {
+			Entry old = entries.put(key, entry);
+			if(old != null) {
+				size -= old.length;
+				old.close();
+			}
+			size += length;
+			Iterator<Entry> it = entries.values().iterator();
+			while(size > maxSize && it.hasNext()) {
+				Entry eldest = it.next();
+				it.remove();
+				size -= eldest.length;
+				eldest.close();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		for(Entry entry : entries.values()) {
+			entry.close();
+		}
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * COS オブジェクトを複製します。ストリームは document の作業領域に作成されます。
+	 * document が null の場合はどのドキュメントにも属さないストリーム(メモリー上に独自の作業領域を持つストリーム)を作成します。
+	 */
+	protected static COSBase copy(COSBase base, PDDocument document) throws IOException {
+		if(base instanceof COSObject) {
+			return copy(((COSObject)base).getObject(), document);
+		} else if(base instanceof COSStream) {
+			COSStream src = (COSStream)base;
+			COSStream dst = (document != null) ? document.getDocument().createCOSStream() : new COSStream();
+			for(Map.Entry<COSName, COSBase> e : src.entrySet()) {
+				if(!e.getKey().equals(COSName.LENGTH)) {
+					dst.setItem(e.getKey(), copy(e.getValue(), document));
+				}
+			}
+			try(InputStream in = src.createRawInputStream(); OutputStream out = dst.createRawOutputStream()) {
+				IOUtils.copy(in, out);
+			}
+			return dst;
+		} else if(base instanceof COSDictionary) {
+			COSDictionary dst = new COSDictionary();
+			for(Map.Entry<COSName, COSBase> e : ((COSDictionary)base).entrySet()) {
+				dst.setItem(e.getKey(), copy(e.getValue(), document));
+			}
+			return dst;
+		} else if(base instanceof COSArray) {
+			COSArray dst = new COSArray();
+			for(int i = 0; i < ((COSArray)base).size(); i++) {
+				dst.add(copy(((COSArray)base).get(i), document));
+			}
+			return dst;
+		}
+		return base;
+	}
+
+	private static long getLength(COSBase base) {
+		long length = 0;
+		if(base instanceof COSStream) {
+			length += ((COSStream)base).getLength();
+		}
+		if(base instanceof COSDictionary) {
+			for(COSBase value : ((COSDictionary)base).getValues()) {
+				length += getLength(value);
+			}
+		} else if(base instanceof COSArray) {
+			for(COSBase value : (COSArray)base) {
+				length += getLength(value);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * 画像ファイルのパス、サイズ、更新日時からなるキーです。
+	 */
+	public static class Key {
+		private final String path;
+		private final long length;
+		private final long lastModified;
+
+		public Key(File file) {
+			this.path = file.getAbsoluteFile().toPath().normalize().toString();
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return (path.hashCode() * 31 + Long.hashCode(length)) * 31 + Long.hashCode(lastModified);
+		}
+	}
+
+	private static class Entry {
+		COSStream stream;
+		final long length;
+
+		Entry(COSStream stream, long length) {
+			this.stream = stream;
+			this.length = length;
+		}
+
+		synchronized void close() {
+			if(stream != null) {
+				try {
+					stream.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+				stream = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,527 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.FontLoader;
+import net.osdn.pdf_brewer.PdfBrewer;
+import net.osdn.pdf_brewer.instruction.Align;
+import net.osdn.pdf_brewer.instruction.Box;
+import net.osdn.pdf_brewer.instruction.Image;
+import net.osdn.pdf_brewer.instruction.Instruction;
+import net.osdn.pdf_brewer.instruction.LineStyle;
+import net.osdn.pdf_brewer.instruction.NewPage;
+import net.osdn.pdf_brewer.instruction.text.Font;
+import net.osdn.pdf_brewer.instruction.text.LineHeight;
+import net.osdn.pdf_brewer.instruction.text.TextAlign;
+import net.osdn.pdf_brewer.instruction.text.TextOverflow;
+
+/**
+ * 命令列をチャンクに分割して生成し、前回の生成結果から変更のないチャンクを再利用します。
+ *
+ * 命令列はトップレベル(インデント 0)の \new-page でセグメントに区切られます。
+ * トップレベルではコンテキストのスタックはルートだけになり、ルートのコンテキストを変更するのは
+ * トップレベルの状態命令(\font, \line-height, \text-align, \text-overflow, \align, \box, \line-style)だけです。
+ * そのため、セグメントの開始時の状態は、それより前にあるトップレベルの状態命令を再実行することで再現できます。
+ *
+ * 連続するセグメントは内容から決まる境界でチャンクにまとめられ、チャンクごとに別々の PdfBrewer で生成されます。
+ * チャンクは開始時の状態と命令列のフィンガープリントで識別され、フィンガープリントが一致するチャンクは再生成されません。
+ * 再生成が必要なチャンクが複数ある場合は ForkJoinPool で並列に生成します。
+ * 生成された PDDocument は各チャンクのページを命令列の順に importPage で結合したものです。
+ *
+ * チャンクのフォントは埋め込まれていないため、生成した PDDocument はプレビュー専用です。
+ * 保存する場合は DocumentLoader.save のように全体を生成し直してください。
+ */
+public class IncrementalBrewer {
+
+	public static final String PARALLEL_PROPERTY = "pdf-brewer.parallel";
+
+	/** チャンクに含めるセグメント数の下限です。 */
+	private static final int MIN_CHUNK_SEGMENTS = 4;
+
+	/** チャンクに含めるセグメント数の上限です。 */
+	private static final int MAX_CHUNK_SEGMENTS = 32;
+
+	/** セグメントのハッシュ値の下位ビットがすべて 0 の場合にチャンクを区切ります。(平均 16 セグメント) */
+	private static final long CHUNK_BOUNDARY_MASK = 0xF;
+
+	/** チャンクを並列に生成するためのスレッドプールです。(ワーカースレッドはデーモンスレッドです。) */
+	private static ForkJoinPool pool;
+
+	private FontLoaderPool fontLoaderPool;
+	private FontLoader fontLoader;
+	private Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+	private long[] lastPageKeys = new long[0];
+	private int refs = 1;
+
+	public IncrementalBrewer() {
+		this(FontLoaderPool.getDefault());
+	}
+
+	/**
+	 * チャンクの PdfBrewer は保存されない(フォントがサブセット化されない)ため、1 つの FontLoader を共有します。
+	 * 並列に生成する場合も同じ FontLoader を使用します。(TrueTypeFont のテーブルの読み込みは同期化されています。)
+	 */
+	public IncrementalBrewer(FontLoaderPool pool) {
+		this.fontLoaderPool = pool;
+		this.fontLoader = pool.acquire();
+	}
+
+	public FontLoader getFontLoader() {
+		return fontLoader;
+	}
+
+	/**
+	 * 参照カウントを増やします。次の DocumentLoader にチャンクを引き継ぐときに使用します。
+	 */
+	public synchronized IncrementalBrewer retain() {
+		if(refs <= 0) {
+			return null;
+		}
+		refs++;
+		return this;
+	}
+
+	/**
+	 * 参照カウントを減らします。参照がなくなるとすべてのチャンクを閉じて FontLoader を返却します。
+	 */
+	public synchronized void release() {
+		if(--refs > 0) {
+			return;
+		}
+		for(Chunk chunk : chunks.values()) {
+			chunk.close();
+		}
+		chunks.clear();
+		fontLoaderPool.release(fontLoader);
+		fontLoader = null;
+	}
+
+	/**
+	 * チャンクを生成(または再利用)して結合した PDDocument を返します。
+	 *
+	 * @param pb 命令列
+	 * @param title タイトル (null の場合は設定しません)
+	 * @param author 作成者 (null の場合は設定しません)
+	 * @param checkCancelled 各チャンクの生成前と描画命令ごとに呼び出されます。処理を中止する場合は例外をスローしてください。
+	 */
+	public Build build(BrewerData pb, String title, String author, Runnable checkCancelled) throws IOException {
+		List<ChunkSpec> specs = split(pb.getMediaBox(), pb.getInstructions());
+		Build build = new Build();
+		try {
+			PDDocument document = build.document;
+			PDDocumentInformation info = document.getDocumentInformation();
+			info.setProducer(PdfBrewer.getDefaultProducer());
+			info.setCreator(PdfBrewer.getDefaultCreator());
+			if(title != null) {
+				info.setTitle(title);
+			}
+			if(author != null) {
+				info.setAuthor(author);
+			}
+			Calendar date = Calendar.getInstance();
+			info.setCreationDate(date);
+			info.setModificationDate(date);
+
+			long[] previousPageKeys;
+			synchronized(this) {
+				previousPageKeys = lastPageKeys;
+			}
+			// 再利用できないチャンクは並列に生成し、結合は命令列の順に行います。
+			Chunk[] reused = new Chunk[specs.size()];
+			List<ForkJoinTask<Chunk>> tasks = new ArrayList<ForkJoinTask<Chunk>>(Collections.nCopies(specs.size(), null));
+			int missing = 0;
+			for(int i = 0; i < specs.size(); i++) {
+				reused[i] = retain(specs.get(i).fingerprint);
+				if(reused[i] == null) {
+					missing++;
+				}
+			}
+			if(missing >= 2 && isParallel()) {
+				ForkJoinPool pool = getPool();
+				for(int i = 0; i < specs.size(); i++) {
+					if(reused[i] == null) {
+						ChunkSpec spec = specs.get(i);
+						tasks.set(i, pool.submit(() -> create(pb, spec, checkCancelled)));
+					}
+				}
+			}
+
+			List<Long> pageKeys = new ArrayList<Long>();
+			for(int i = 0; i < specs.size(); i++) {
+				ChunkSpec spec = specs.get(i);
+				Chunk chunk;
+				try {
+					checkCancelled.run();
+					if(reused[i] != null) {
+						chunk = reused[i];
+					} else if(tasks.get(i) != null) {
+						chunk = join(tasks.get(i));
+					} else {
+						chunk = create(pb, spec, checkCancelled);
+					}
+				} catch(IOException | RuntimeException e) {
+					// 結合していないチャンクの参照を解放します。生成中のチャンクは完了を待ってから解放します。
+					for(int j = i; j < specs.size(); j++) {
+						Chunk c = reused[j];
+						if(c == null && tasks.get(j) != null) {
+							try {
+								c = join(tasks.get(j));
+							} catch(IOException | RuntimeException ignore) {
+							}
+						}
+						if(c != null) {
+							release(c);
+						}
+					}
+					throw e;
+				}
+				reused[i] = null;
+				tasks.set(i, null);
+				build.chunks.add(chunk);
+				PDPageTree pages = chunk.brewer.getDocument().getPages();
+				int offset = 0;
+				for(PDPage page : pages) {
+					// セグメントの中に \new-page がなければ、ページの内容はセグメントの開始時の状態と命令列で決まります。
+					// そうでなければチャンクのフィンガープリントとチャンク内の位置で識別します。
+					long key = (pages.getCount() == spec.pageKeys.length) ? spec.pageKeys[offset] : mix(chunk.fingerprint, offset);
+					offset++;
+					int index = pageKeys.size();
+					if(index >= previousPageKeys.length || previousPageKeys[index] != key) {
+						build.dirtyPages.set(index);
+					}
+					pageKeys.add(key);
+					document.importPage(page);
+				}
+				build.cache.fonts.putAll(chunk.cache.fonts);
+			}
+			document.setResourceCache(build.cache);
+
+			build.pageKeys = new long[pageKeys.size()];
+			for(int i = 0; i < build.pageKeys.length; i++) {
+				build.pageKeys[i] = pageKeys.get(i);
+			}
+			synchronized(this) {
+				lastPageKeys = build.pageKeys;
+			}
+			return build;
+		} catch(IOException | RuntimeException e) {
+			build.close();
+			throw e;
+		}
+	}
+
+	private static Chunk join(ForkJoinTask<Chunk> task) throws IOException {
+		try {
+			return task.get();
+		} catch(InterruptedException e) {
+			task.cancel(false);
+			throw new CancellationException();
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * チャンクを並列に生成するかどうかを返します。
+	 * システムプロパティ {@value #PARALLEL_PROPERTY} に false を指定すると 1 つのスレッドで順番に生成します。
+	 */
+	protected static boolean isParallel() {
+		return !"false".equalsIgnoreCase(System.getProperty(PARALLEL_PROPERTY, "true").trim());
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if(pool == null) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+
+	private synchronized Chunk retain(long fingerprint) {
+		Chunk chunk = chunks.get(fingerprint);
+		if(chunk != null) {
+			chunk.refs++;
+		}
+		return chunk;
+	}
+
+	private synchronized void release(Chunk chunk) {
+		if(--chunk.refs > 0) {
+			return;
+		}
+		if(chunks.get(chunk.fingerprint) == chunk) {
+			chunks.remove(chunk.fingerprint);
+		}
+		chunk.close();
+	}
+
+	private Chunk create(BrewerData pb, ChunkSpec spec, Runnable checkCancelled) throws IOException {
+		FontLoader fontLoader;
+		synchronized(this) {
+			fontLoader = this.fontLoader;
+		}
+		if(fontLoader == null) {
+			throw new IllegalStateException("released");
+		}
+		ExtendedPdfBrewer brewer = new ExtendedPdfBrewer(fontLoader) {
+			@Override
+			public PDPageContentStream getContentStream() {
+				checkCancelled.run();
+				return super.getContentStream();
+			}
+		};
+		try {
+			// 開始時の状態は空のテキストオブジェクトを出力せずに再現します。(全体を生成した場合と同じコンテンツストリームになります。)
+			brewer.process(new ChunkData(pb, spec.body, fontLoader), spec.prelude);
+			Chunk chunk = new Chunk(spec.fingerprint, brewer, DocumentLoader.finish(brewer));
+			synchronized(this) {
+				Chunk old = chunks.put(chunk.fingerprint, chunk);
+				if(old != null && old.refs <= 0) {
+					old.close();
+				}
+			}
+			return chunk;
+		} catch(IOException | RuntimeException e) {
+			brewer.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 命令列をチャンクに分割します。
+	 * 用紙サイズ(\media)は命令列に含まれないため、開始時の状態のハッシュ値に加えます。
+	 * (チャンクのフィンガープリントとページのキーはどちらも開始時の状態のハッシュ値から求めます。)
+	 */
+	protected static List<ChunkSpec> split(PDRectangle mediaBox, List<Instruction> instructions) {
+		List<ChunkSpec> specs = new ArrayList<ChunkSpec>();
+		List<Instruction> states = new ArrayList<Instruction>();
+
+		long entryHash = FNV_OFFSET;
+		if(mediaBox != null) {
+			entryHash = mix(entryHash, Float.floatToIntBits(mediaBox.getLowerLeftX()));
+			entryHash = mix(entryHash, Float.floatToIntBits(mediaBox.getLowerLeftY()));
+			entryHash = mix(entryHash, Float.floatToIntBits(mediaBox.getWidth()));
+			entryHash = mix(entryHash, Float.floatToIntBits(mediaBox.getHeight()));
+		}
+		long chunkHash = FNV_OFFSET;
+		int chunkStart = 0;
+		int chunkStates = 0;
+		long chunkEntryHash = entryHash;
+		int segments = 0;
+		long segmentHash = FNV_OFFSET;
+		long segmentEntryHash = entryHash;
+		List<Long> segmentKeys = new ArrayList<Long>();
+
+		for(int i = 0; i <= instructions.size(); i++) {
+			Instruction instruction = (i < instructions.size()) ? instructions.get(i) : null;
+			boolean isBoundary = instruction == null || (instruction instanceof NewPage && instruction.getIndent() == 0);
+			if(!isBoundary) {
+				segmentHash = hash(segmentHash, instruction);
+				if(instruction.getIndent() == 0 && isStateInstruction(instruction)) {
+					states.add(instruction);
+					entryHash = hash(entryHash, instruction);
+				}
+				continue;
+			}
+
+			// セグメントの終わり
+			segments++;
+			chunkHash = mix(chunkHash, segmentHash);
+			segmentKeys.add(mix(segmentEntryHash, segmentHash));
+			if(instruction == null
+					|| (segments >= MIN_CHUNK_SEGMENTS && (segmentHash & CHUNK_BOUNDARY_MASK) == 0)
+					|| segments >= MAX_CHUNK_SEGMENTS) {
+				long fingerprint = mix(mix(chunkEntryHash, chunkHash), segments);
+				List<Instruction> prelude = new ArrayList<Instruction>(states.subList(0, chunkStates));
+				List<Instruction> body = new ArrayList<Instruction>(instructions.subList(chunkStart, i));
+				long[] pageKeys = new long[segmentKeys.size()];
+				for(int j = 0; j < pageKeys.length; j++) {
+					pageKeys[j] = segmentKeys.get(j);
+				}
+				specs.add(new ChunkSpec(fingerprint, prelude, body, pageKeys));
+				segmentKeys.clear();
+
+				// 次のチャンクは境界の \new-page の次から始まります。(PdfBrewer.process は最初に newPage を呼び出します。)
+				chunkStart = i + 1;
+				chunkStates = states.size();
+				chunkEntryHash = entryHash;
+				chunkHash = FNV_OFFSET;
+				segments = 0;
+			} else {
+				// チャンク内の \new-page はそのまま命令列に含めます。
+				chunkHash = hash(chunkHash, instruction);
+			}
+			segmentHash = FNV_OFFSET;
+			segmentEntryHash = entryHash;
+		}
+		return specs;
+	}
+
+	protected static boolean isStateInstruction(Instruction instruction) {
+		return instruction instanceof Font
+				|| instruction instanceof LineHeight
+				|| instruction instanceof TextAlign
+				|| instruction instanceof TextOverflow
+				|| instruction instanceof Align
+				|| instruction instanceof Box
+				|| instruction instanceof LineStyle;
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static long hash(long h, Instruction instruction) {
+		String s = instruction.toString();
+		for(int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		h = (h ^ '\n') * FNV_PRIME;
+		if(instruction instanceof Image) {
+			// 画像ファイルが更新された場合も再生成します。
+			File file = DocumentLoader.getFile((Image)instruction);
+			if(file != null) {
+				h = mix(h, file.length());
+				h = mix(h, file.lastModified());
+			}
+		}
+		return h;
+	}
+
+	private static long mix(long h, long value) {
+		for(int i = 0; i < 8; i++) {
+			h = (h ^ (value & 0xFF)) * FNV_PRIME;
+			value >>>= 8;
+		}
+		return h;
+	}
+
+	/**
+	 * 生成結果です。close で PDDocument を閉じ、チャンクの参照を解放します。
+	 */
+	public class Build implements Closeable {
+		private PDDocument document = new PDDocument();
+		private BitSet dirtyPages = new BitSet();
+		private List<Chunk> chunks = new ArrayList<Chunk>();
+		private DocumentLoader.FontResourceCache cache = new DocumentLoader.FontResourceCache();
+		private long[] pageKeys = new long[0];
+
+		public PDDocument getDocument() {
+			return document;
+		}
+
+		/**
+		 * 前回の生成結果と内容が異なる可能性のあるページのインデックスを返します。
+		 */
+		public BitSet getDirtyPages() {
+			return (BitSet)dirtyPages.clone();
+		}
+
+		/**
+		 * ページの内容を識別する値を返します。値が同じページは同じ内容で描画されます。
+		 * ページが挿入・削除されてインデックスがずれた場合でも、描画結果のキャッシュのキーとして使用できます。
+		 */
+		public long getPageKey(int pageIndex) {
+			return pageKeys[pageIndex];
+		}
+
+		public int getChunkCount() {
+			return chunks.size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if(document != null) {
+					document.close();
+				}
+			} finally {
+				document = null;
+				for(Chunk chunk : chunks) {
+					release(chunk);
+				}
+				chunks = Collections.emptyList();
+			}
+		}
+	}
+
+	protected static class ChunkSpec {
+		final long fingerprint;
+		final List<Instruction> prelude;
+		final List<Instruction> body;
+		final long[] pageKeys;
+
+		ChunkSpec(long fingerprint, List<Instruction> prelude, List<Instruction> body, long[] pageKeys) {
+			this.fingerprint = fingerprint;
+			this.prelude = prelude;
+			this.body = body;
+			this.pageKeys = pageKeys;
+		}
+	}
+
+	private static class Chunk {
+		final long fingerprint;
+		final PdfBrewer brewer;
+		final DocumentLoader.FontResourceCache cache;
+		int refs = 1;
+
+		Chunk(long fingerprint, PdfBrewer brewer, DocumentLoader.FontResourceCache cache) {
+			this.fingerprint = fingerprint;
+			this.brewer = brewer;
+			this.cache = cache;
+		}
+
+		void close() {
+			try {
+				brewer.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 元の BrewerData の用紙サイズでチャンクの命令列を処理するための BrewerData です。
+	 */
+	private static class ChunkData extends BrewerData {
+		private PDRectangle mediaBox;
+
+		ChunkData(BrewerData pb, List<Instruction> instructions, FontLoader fontLoader) throws IOException {
+			super(Collections.<String>emptyList(), fontLoader);
+			this.mediaBox = pb.getMediaBox();
+			getInstructions().addAll(instructions);
+		}
+
+		@Override
+		public PDRectangle getMediaBox() {
+			return mediaBox;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeCollection;
+import org.apache.fontbox.ttf.TrueTypeFont;
+
+import net.osdn.pdf_brewer.FontLoader;
+
+/**
+ * フォント名の索引をデータ保存ディレクトリに保存し、フォントファイルを必要になるまで読み込まない FontLoader です。
+ *
+ * FontLoader はフォントフォルダーのすべてのフォントファイルを解析するため、起動直後の最初の変換に時間がかかります。
+ * IndexedFontLoader はフォントファイルごとに(パス、サイズ、更新日時)をキーとしてフォント名を索引に保存しておき、
+ * getFont で要求されたフォントを含むファイルだけを読み込みます。
+ * 索引にないファイル(追加・更新されたファイル)だけが解析され、索引に追加されます。
+ *
+ * getFont はフォントファイルを読み込んで FontLoader のマップに登録するため、
+ * IncrementalBrewer がチャンクを並列に生成するときに同じ IndexedFontLoader が複数のスレッドから使用されます。
+ * マップを参照・変更するメソッドはすべて同期化しています。
+ */
+public class IndexedFontLoader extends FontLoader {
+
+	private static final String INDEX_FILENAME = "fonts.idx";
+	private static final int INDEX_MAGIC = 0x50424649; // "PBFI"
+	private static final int INDEX_VERSION = 1;
+
+	private File fontDir;
+	private Map<String, Entry> index;
+	private Set<String> loadedFiles = new HashSet<String>();
+
+	public IndexedFontLoader(File fontDir) {
+		super(null);
+		this.fontDir = fontDir;
+		this.index = buildIndex(fontDir);
+	}
+
+	@Override
+	public synchronized TrueTypeFont getFont(String name) {
+		// スーパークラスのコンストラクターから呼ばれた時点では index は初期化されていません。
+		TrueTypeFont ttf = super.getFont(name);
+		if(ttf != null || index == null || name == null || name.isBlank()) {
+			return ttf;
+		}
+		Entry entry = index.get(normalize(name));
+		if(entry == null) {
+			entry = index.get(normalize(name + "-Regular"));
+		}
+		if(entry == null) {
+			entry = index.get(normalize(name + "-標準"));
+		}
+		if(entry == null) {
+			return null;
+		}
+		if(loadedFiles.add(entry.fileName)) {
+			load(fontDir, Collections.singletonList(entry.fileName), null);
+		}
+		ttf = super.getFont(entry.fontName);
+		if(ttf != null) {
+			try {
+				register(name, ttf);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return ttf;
+	}
+
+	@Override
+	public synchronized List<TrueTypeFont> listFonts() {
+		return super.listFonts();
+	}
+
+	@Override
+	public synchronized File getTtcFile(TrueTypeFont ttf) throws IOException {
+		return super.getTtcFile(ttf);
+	}
+
+	@Override
+	public synchronized void register(TrueTypeFont ttf) throws IOException {
+		super.register(ttf);
+	}
+
+	@Override
+	public synchronized void register(String name, TrueTypeFont ttf) throws IOException {
+		super.register(name, ttf);
+	}
+
+	@Override
+	public synchronized void close() {
+		super.close();
+	}
+
+	/**
+	 * フォントファイルを読み込みます。読み込みは Java Flight Recorder に FlightRecorderEvents.FontLoad として記録されます。
+	 */
+	@Override
+	public synchronized void load(File dir, Collection<String> fileNames, Collection<String> fontNames) {
+		FlightRecorderEvents.FontLoad event = new FlightRecorderEvents.FontLoad();
+		event.begin();
+		try {
+			super.load(dir, fileNames, fontNames);
+		} finally {
+			event.end();
+			if(event.shouldCommit() && dir != null) {
+				event.directory = dir.getAbsolutePath();
+				if(fileNames != null) {
+					event.files = String.join(", ", fileNames);
+					for(String fileName : fileNames) {
+						event.bytes += new File(dir, fileName).length();
+					}
+				} else {
+					event.files = "*";
+				}
+				event.commit();
+			}
+		}
+	}
+
+	private Map<String, Entry> buildIndex(File dir) {
+		Map<String, Entry> map = new HashMap<String, Entry>();
+		if(dir == null) {
+			return map;
+		}
+		File[] ttfFiles = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".ttf"));
+		File[] ttcFiles = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".ttc"));
+		if(ttfFiles == null || ttcFiles == null) {
+			return map;
+		}
+
+		Path indexFile = getIndexFile();
+		Map<String, FileRecord> records = readIndex(indexFile);
+		boolean isModified = false;
+
+		// FontLoader.load と同じく TTF → TTC の順に登録します。(同名のフォントは後から登録したものが優先されます。)
+		Map<String, FileRecord> current = new LinkedHashMap<String, FileRecord>();
+		List<File> files = new ArrayList<File>();
+		files.addAll(Arrays.asList(ttfFiles));
+		files.addAll(Arrays.asList(ttcFiles));
+		for(File file : files) {
+			String key = file.getAbsolutePath();
+			FileRecord record = records.get(key);
+			if(record == null || record.length != file.length() || record.lastModified != file.lastModified()) {
+				record = parse(file);
+				isModified = true;
+			}
+			current.put(key, record);
+			for(FontRecord font : record.fonts) {
+				Entry entry = new Entry(file.getName(), font.fontName);
+				for(String normalizedName : font.normalizedNames) {
+					map.put(normalizedName, entry);
+				}
+			}
+		}
+		if(isModified || current.size() != records.size()) {
+			writeIndex(indexFile, current);
+		}
+
+		// FontLoader のコンストラクターと同じ別名を登録します。
+		String[][] aliases = {
+			{ "serif",          "YuMincho-Regular",  "r-源様明朝",        "ipaexmincho" },
+			{ "serif-Bold",     "YuMincho-Demibold", "b-源様明朝",        "ipaexmincho" },
+			{ "sansSerif",      "YuGothic-Regular",  "regular-源真ゴシック", "ipaexgothic" },
+			{ "sansSerif-Bold", "YuGothic-Bold",     "bold-源真ゴシック",   "ipaexgothic" }
+		};
+		Entry[] resolved = new Entry[aliases.length];
+		for(int i = 0; i < aliases.length; i++) {
+			for(int j = 1; j < aliases[i].length && resolved[i] == null; j++) {
+				resolved[i] = lookup(map, aliases[i][j]);
+			}
+		}
+		if(resolved[0] != null && resolved[1] != null && resolved[2] != null && resolved[3] != null) {
+			map.put(normalize("serif"), resolved[0]);
+			map.put(normalize("serif-Bold"), resolved[1]);
+			map.put(normalize("sansSerif"), resolved[2]);
+			map.put(normalize("sansSerif-Bold"), resolved[3]);
+			map.put(normalize("sans-Serif"), resolved[2]);
+			map.put(normalize("sans-Serif-Bold"), resolved[3]);
+		}
+		return map;
+	}
+
+	private static Entry lookup(Map<String, Entry> map, String name) {
+		Entry entry = map.get(normalize(name));
+		if(entry == null) {
+			entry = map.get(normalize(name + "-Regular"));
+		}
+		if(entry == null) {
+			entry = map.get(normalize(name + "-標準"));
+		}
+		return entry;
+	}
+
+	protected FileRecord parse(File file) {
+		FileRecord record = new FileRecord(file.length(), file.lastModified());
+		try {
+			if(file.getName().toLowerCase().endsWith(".ttc")) {
+				try(TrueTypeCollection ttc = new TrueTypeCollection(file)) {
+					ttc.processAllFonts(ttf -> {
+						try {
+							add(record, ttf);
+						} finally {
+							ttf.close();
+						}
+					});
+				}
+			} else {
+				TrueTypeFont ttf = new TTFParser().parse(file);
+				try {
+					add(record, ttf);
+				} finally {
+					ttf.close();
+				}
+			}
+		} catch(IOException e) {
+			// 解析できないファイルは空のレコードとして記録し、次回以降は読み込みません。
+			e.printStackTrace();
+		}
+		return record;
+	}
+
+	private void add(FileRecord record, TrueTypeFont ttf) throws IOException {
+		String fontName = ttf.getName();
+		if(fontName != null && !fontName.isBlank()) {
+			record.fonts.add(new FontRecord(fontName, getNormalizedNames(ttf)));
+		}
+	}
+
+	protected Path getIndexFile() {
+		try {
+			return Datastore.getMyDataDirectory(true).resolve(INDEX_FILENAME);
+		} catch(Exception e) {
+			// データ保存ディレクトリを参照できない場合は索引を保存しません。
+			return null;
+		}
+	}
+
+	protected Map<String, FileRecord> readIndex(Path indexFile) {
+		Map<String, FileRecord> records = new HashMap<String, FileRecord>();
+		if(indexFile == null || !Files.isRegularFile(indexFile)) {
+			return records;
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if(in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				return records;
+			}
+			int fileCount = in.readInt();
+			for(int i = 0; i < fileCount; i++) {
+				String path = in.readUTF();
+				FileRecord record = new FileRecord(in.readLong(), in.readLong());
+				int fontCount = in.readInt();
+				for(int j = 0; j < fontCount; j++) {
+					String fontName = in.readUTF();
+					int nameCount = in.readInt();
+					List<String> normalizedNames = new ArrayList<String>(nameCount);
+					for(int k = 0; k < nameCount; k++) {
+						normalizedNames.add(in.readUTF());
+					}
+					record.fonts.add(new FontRecord(fontName, normalizedNames));
+				}
+				records.put(path, record);
+			}
+		} catch(IOException e) {
+			// 壊れた索引は破棄して作り直します。
+			records.clear();
+		}
+		return records;
+	}
+
+	protected void writeIndex(Path indexFile, Map<String, FileRecord> records) {
+		if(indexFile == null) {
+			return;
+		}
+		try {
+			Path tmp = Files.createTempFile(indexFile.getParent(), INDEX_FILENAME, ".tmp");
+			try {
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+					out.writeInt(INDEX_MAGIC);
+					out.writeInt(INDEX_VERSION);
+					out.writeInt(records.size());
+					for(Map.Entry<String, FileRecord> e : records.entrySet()) {
+						FileRecord record = e.getValue();
+						out.writeUTF(e.getKey());
+						out.writeLong(record.length);
+						out.writeLong(record.lastModified);
+						out.writeInt(record.fonts.size());
+						for(FontRecord font : record.fonts) {
+							out.writeUTF(font.fontName);
+							out.writeInt(font.normalizedNames.size());
+							for(String s : font.normalizedNames) {
+								out.writeUTF(s);
+							}
+						}
+					}
+				}
+				Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * FontLoader.normalize と同じ正規化を行います。
+	 */
+	private static String normalize(String name) {
+		String s = name.replace('\t', '-').replace('　', '-').replace(' ', '-').toLowerCase();
+		while(s.contains("--")) {
+			s = s.replace("--", "-");
+		}
+		s = Normalizer.normalize(s, Normalizer.Form.NFKC);
+		String[] tokens = s.split("-");
+		Arrays.sort(tokens);
+		return String.join("-", tokens);
+	}
+
+	private static class Entry {
+		final String fileName;
+		final String fontName;
+
+		Entry(String fileName, String fontName) {
+			this.fileName = fileName;
+			this.fontName = fontName;
+		}
+	}
+
+	protected static class FileRecord {
+		final long length;
+		final long lastModified;
+		final List<FontRecord> fonts = new ArrayList<FontRecord>();
+
+		FileRecord(long length, long lastModified) {
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	protected static class FontRecord {
+		final String fontName;
+		final List<String> normalizedNames;
+
+		FontRecord(String fontName, List<String> normalizedNames) {
+			this.fontName = fontName;
+			this.normalizedNames = normalizedNames;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker.State;
+import net.osdn.util.javafx.scene.control.pdf.PdfView;
+
+/**
+ * PdfView へのドキュメントの読み込み要求を調停します。(FX アプリケーションスレッドから使用してください。)
+ *
+ * 新しい読み込みを要求すると、完了していない以前の読み込みはすべて中止されます。
+ * 実行待ちの DocumentLoader は何もせずに終了し、実行中の DocumentLoader は次の処理段階の境界で
+ * CancellationException をスローして、生成途中のドキュメントを閉じます。
+ * 中止される前に生成が完了したドキュメントも、表示されることなく閉じられます。
+ *
+ * スレッドへの割り込みは使用しません。
+ * PDFBox が入力ファイルや作業領域の読み書きに使用する FileChannel は、割り込まれると閉じられてしまうためです。
+ *
+ * PdfView は読み込みを開始した時点で前のドキュメントを表示しなくなりますが、描画中の処理が残っている可能性があるため、
+ * 前の DocumentLoader は次の読み込みタスクの完了後に閉じます。
+ * (PdfView の描画と読み込みは同じスレッドで順番に実行されます。)
+ */
+public class LoadCoordinator {
+
+	private PdfView pdfView;
+	private Set<DocumentLoader> pending = new LinkedHashSet<DocumentLoader>();
+	private DocumentLoader latest;
+	private Task<PDDocument> latestTask;
+	private int latestPageIndex;
+
+	public LoadCoordinator(PdfView pdfView) {
+		this.pdfView = pdfView;
+	}
+
+	/**
+	 * loader で生成したドキュメントを PdfView に読み込みます。完了していない以前の読み込みは中止されます。
+	 */
+	public Task<PDDocument> load(DocumentLoader loader, int pageIndex) {
+		for(DocumentLoader superseded : pending) {
+			superseded.cancel();
+		}
+
+		DocumentLoader previous = latest;
+		loader.setPrevious(previous);
+		Task<PDDocument> task = pdfView.load(loader, pageIndex);
+		pending.add(loader);
+		latest = loader;
+		latestTask = task;
+		latestPageIndex = pageIndex;
+
+		task.stateProperty().addListener((observable, oldValue, newValue) -> {
+			if(newValue == State.SUCCEEDED || newValue == State.FAILED || newValue == State.CANCELLED) {
+				pending.remove(loader);
+				if(previous != null) {
+					close(previous);
+				}
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * 最後に要求された DocumentLoader を返します。
+	 */
+	public DocumentLoader getLatest() {
+		return latest;
+	}
+
+	/**
+	 * 最後に要求された読み込みが完了していなければ true を返します。
+	 */
+	public boolean isLoading() {
+		return latestTask != null && !latestTask.isDone();
+	}
+
+	/**
+	 * 最後に要求された読み込みで表示するページのインデックスを返します。
+	 */
+	public int getRequestedPageIndex() {
+		return latestPageIndex;
+	}
+
+	/**
+	 * loader が最後に要求された読み込みであり、中止されていなければ true を返します。
+	 */
+	public boolean isCurrent(DocumentLoader loader) {
+		return loader == latest && !loader.isCancelled();
+	}
+
+	protected void close(DocumentLoader loader) {
+		try {
+			loader.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,15 +1,33 @@
 package net.osdn.pdf_brewer.ui;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogConfigurationException;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.LogFactoryImpl;
 
+/**
+ * ロガー名ごとに出力するレベルを設定できる LogFactory です。
+ *
+ * ロガー名は「.」で区切られた階層として扱われ、レベルが設定されていないロガーは最も近い上位のロガーのレベルに従います。
+ * 解決したレベルはロガー名ごとにキャッシュされ、setLevel が呼ばれたときにだけ解決し直されます。
+ * getInstance が返す Wrapper は setLevel による変更を直ちに反映します。
+ *
+ * setAsync(true) またはシステムプロパティ {@value #ASYNC_PROPERTY}=true を指定すると、
+ * ログの出力は専用のスレッドで行われ、ログを出力したスレッドはコンソールへの書き込みを待ちません。
+ * 出力待ちのログが {@value #ASYNC_BUFFER_SIZE} 件を超えると古いものから破棄されます。
+ */
 public class LogFilter extends LogFactory {
 
+	public static final String ASYNC_PROPERTY = "pdf-brewer.log.async";
+	private static final int ASYNC_BUFFER_SIZE = 1024;
+
 	public enum Level {
 		TRACE,
 		DEBUG,
@@ -20,32 +38,52 @@ public class LogFilter extends LogFactory {
 		OFF
 	};
 	
-	private static Map<String, Level> levels = new HashMap<String, Level>();
+	private static ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+	private static AtomicInteger generation = new AtomicInteger();
+	private static volatile AsyncAppender appender = Boolean.getBoolean(ASYNC_PROPERTY) ? new AsyncAppender() : null;
 	
 	public static void setLevel(Class<?> clazz, Level level) {
-		levels.put(clazz.getName(), level);
+		setLevel(clazz.getName(), level);
 	}
 	
+	/**
+	 * ロガー名 name とその下位のロガーのレベルを設定します。level に null を指定すると設定を解除します。
+	 */
 	public static void setLevel(String name, Level level) {
-		levels.put(name, level);
+		getNode(name).level = level;
+		generation.incrementAndGet();
 	}
 	
-	private static Level getLevel(String name) {
-		for(;;) {
-			Level level = levels.get(name);
-			if(level != null) {
-				return level;
-			}
+	private static Node getNode(String name) {
+		Node node = nodes.get(name);
+		if(node == null) {
+			// 上位のロガーのノードを先に作成して、各ノードが親を参照するようにします。
 			int i = name.lastIndexOf('.');
-			if(i == -1) {
-				return null;
-			}
-			name = name.substring(0, i);
+			Node parent = (i == -1) ? null : getNode(name.substring(0, i));
+			node = nodes.computeIfAbsent(name, n -> new Node(parent));
 		}
+		return node;
+	}
+
+	/**
+	 * ログの出力を専用のスレッドで行うかどうかを設定します。
+	 */
+	public static synchronized void setAsync(boolean async) {
+		AsyncAppender current = appender;
+		if(async && current == null) {
+			appender = new AsyncAppender();
+		} else if(!async && current != null) {
+			appender = null;
+			current.shutdown();
+		}
+	}
+
+	public static boolean isAsync() {
+		return appender != null;
 	}
-	
 
-    private LogFactory impl;
+	private ConcurrentMap<String, Wrapper> wrappers = new ConcurrentHashMap<String, Wrapper>();
+	private LogFactory impl;
 	
 	public LogFilter() {
 		impl = new LogFactoryImpl();
@@ -64,24 +102,25 @@ public class LogFilter extends LogFactory {
 	@SuppressWarnings("rawtypes")
 	@Override
 	public Log getInstance(Class clazz) throws LogConfigurationException {
-		Log log = impl.getInstance(clazz);
-		if(log != null) {
-			return new Wrapper(log, getLevel(clazz.getName()));
-		}
-		return null;
+		return getInstance(clazz.getName());
 	}
 
 	@Override
 	public Log getInstance(String name) throws LogConfigurationException {
-		Log log = impl.getInstance(name);
-		if(log != null) {
-			return new Wrapper(log, getLevel(name));
+		Wrapper wrapper = wrappers.get(name);
+		if(wrapper == null) {
+			Log log = impl.getInstance(name);
+			if(log == null) {
+				return null;
+			}
+			wrapper = wrappers.computeIfAbsent(name, n -> new Wrapper(log, getNode(n)));
 		}
-		return null;
+		return wrapper;
 	}
 
 	@Override
 	public void release() {
+		wrappers.clear();
 		impl.release();
 	}
 
@@ -95,31 +134,81 @@ public class LogFilter extends LogFactory {
 		impl.setAttribute(name, value);
 	}
 
+	/**
+	 * ロガー名の階層の 1 つのノードです。
+	 * 設定されたレベルと、上位のノードをたどって解決したレベルを保持します。
+	 */
+	private static class Node {
+		final Node parent;
+		volatile Level level;
+		private volatile Resolution resolution;
+
+		Node(Node parent) {
+			this.parent = parent;
+		}
+
+		Level getResolvedLevel() {
+			int current = generation.get();
+			Resolution r = resolution;
+			if(r == null || r.generation != current) {
+				Level resolved = null;
+				for(Node node = this; node != null && resolved == null; node = node.parent) {
+					resolved = node.level;
+				}
+				r = new Resolution(current, (resolved != null) ? resolved : Level.TRACE);
+				resolution = r;
+			}
+			return r.level;
+		}
+	}
+
+	private static class Resolution {
+		final int generation;
+		final Level level;
+
+		Resolution(int generation, Level level) {
+			this.generation = generation;
+			this.level = level;
+		}
+	}
+
 	public static class Wrapper implements Log {
 		
 		private Log impl;
-		private boolean isTraceEnabled;
-		private boolean isDebugEnabled;
-		private boolean isInfoEnabled;
-		private boolean isWarnEnabled;
-		private boolean isErrorEnabled;
-		private boolean isFatalEnabled;
-
-		@SuppressWarnings("fallthrough")
+		private Node node;
+		private volatile Boolean isTraceEnabled;
+		private volatile Boolean isDebugEnabled;
+		private volatile Boolean isInfoEnabled;
+		private volatile Boolean isWarnEnabled;
+		private volatile Boolean isErrorEnabled;
+		private volatile Boolean isFatalEnabled;
+
+		/**
+		 * level に固定された Wrapper を生成します。setLevel による変更は反映されません。
+		 */
 		public Wrapper(Log impl, Level level) {
+			this(impl, new Node(null));
+			node.level = level;
+		}
+
+		private Wrapper(Log impl, Node node) {
 			this.impl = impl;
+			this.node = node;
+		}
 
-			if(level == null) {
-				level = Level.TRACE;
+		private boolean isEnabled(Level level, Boolean override) {
+			if(override != null) {
+				return override;
 			}
-			switch(level) {
-			case TRACE: isTraceEnabled = true;
-			case DEBUG: isDebugEnabled = true;
-			case INFO:  isInfoEnabled = true;
-			case WARN:  isWarnEnabled = true;
-			case ERROR: isErrorEnabled = true;
-			case FATAL: isFatalEnabled = true;
-			case OFF:
+			return node.getResolvedLevel().compareTo(level) <= 0;
+		}
+
+		private void log(Level level, Object message, Throwable t) {
+			AsyncAppender a = appender;
+			if(a != null) {
+				a.append(impl, level, message, t);
+			} else {
+				write(impl, level, message, t);
 			}
 		}
 		
@@ -155,116 +244,225 @@ public class LogFilter extends LogFactory {
 		
 		@Override
 		public boolean isTraceEnabled() {
-			return isTraceEnabled && impl.isTraceEnabled();
+			return isEnabled(Level.TRACE, isTraceEnabled) && impl.isTraceEnabled();
 		}
 
 		@Override
 		public boolean isDebugEnabled() {
-			return isDebugEnabled && impl.isDebugEnabled();
+			return isEnabled(Level.DEBUG, isDebugEnabled) && impl.isDebugEnabled();
 		}
 
 		@Override
 		public boolean isInfoEnabled() {
-			return isInfoEnabled && impl.isInfoEnabled();
+			return isEnabled(Level.INFO, isInfoEnabled) && impl.isInfoEnabled();
 		}
 		
 		@Override
 		public boolean isWarnEnabled() {
-			return isWarnEnabled && impl.isWarnEnabled();
+			return isEnabled(Level.WARN, isWarnEnabled) && impl.isWarnEnabled();
 		}
 
 		@Override
 		public boolean isErrorEnabled() {
-			return isErrorEnabled && impl.isErrorEnabled();
+			return isEnabled(Level.ERROR, isErrorEnabled) && impl.isErrorEnabled();
 		}
 
 		@Override
 		public boolean isFatalEnabled() {
-			return isFatalEnabled && impl.isFatalEnabled();
+			return isEnabled(Level.FATAL, isFatalEnabled) && impl.isFatalEnabled();
 		}
 
 		@Override
 		public void trace(Object message) {
-			if(isTraceEnabled) {
-				impl.trace(message);
+			if(isEnabled(Level.TRACE, isTraceEnabled)) {
+				log(Level.TRACE, message, null);
 			}
 		}
 
 		@Override
 		public void trace(Object message, Throwable t) {
-			if(isTraceEnabled) {
-				impl.trace(message, t);
+			if(isEnabled(Level.TRACE, isTraceEnabled)) {
+				log(Level.TRACE, message, t);
 			}
 		}
 
 		@Override
 		public void debug(Object message) {
-			if(isDebugEnabled) {
-				impl.debug(message);
+			if(isEnabled(Level.DEBUG, isDebugEnabled)) {
+				log(Level.DEBUG, message, null);
 			}
 		}
 
 		@Override
 		public void debug(Object message, Throwable t) {
-			if(isDebugEnabled) {
-				impl.debug(message, t);
+			if(isEnabled(Level.DEBUG, isDebugEnabled)) {
+				log(Level.DEBUG, message, t);
 			}
 		}
 
 		@Override
 		public void info(Object message) {
-			if(isInfoEnabled) {
-				impl.info(message);
+			if(isEnabled(Level.INFO, isInfoEnabled)) {
+				log(Level.INFO, message, null);
 			}
 		}
 
 		@Override
 		public void info(Object message, Throwable t) {
-			if(isInfoEnabled) {
-				impl.info(message, t);
+			if(isEnabled(Level.INFO, isInfoEnabled)) {
+				log(Level.INFO, message, t);
 			}
 		}
 
 		@Override
 		public void warn(Object message) {
-			if(isWarnEnabled) {
-				impl.warn(message);
+			if(isEnabled(Level.WARN, isWarnEnabled)) {
+				log(Level.WARN, message, null);
 			}
 		}
 
 		@Override
 		public void warn(Object message, Throwable t) {
-			if(isWarnEnabled) {
-				impl.warn(message, t);
+			if(isEnabled(Level.WARN, isWarnEnabled)) {
+				log(Level.WARN, message, t);
 			}
 		}
 		
 		@Override
 		public void error(Object message) {
-			if(isErrorEnabled) {
-				impl.error(message);
+			if(isEnabled(Level.ERROR, isErrorEnabled)) {
+				log(Level.ERROR, message, null);
 			}
 		}
 
 		@Override
 		public void error(Object message, Throwable t) {
-			if(isErrorEnabled) {
-				impl.error(message, t);
+			if(isEnabled(Level.ERROR, isErrorEnabled)) {
+				log(Level.ERROR, message, t);
 			}
 		}
 
 		@Override
 		public void fatal(Object message) {
-			if(isFatalEnabled) {
-				impl.fatal(message);
+			if(isEnabled(Level.FATAL, isFatalEnabled)) {
+				log(Level.FATAL, message, null);
 			}
 		}
 
 		@Override
 		public void fatal(Object message, Throwable t) {
-			if(isFatalEnabled) {
-				impl.fatal(message, t);
+			if(isEnabled(Level.FATAL, isFatalEnabled)) {
+				log(Level.FATAL, message, t);
 			}
 		}
 	}
+
+	private static void write(Log log, Level level, Object message, Throwable t) {
+		switch(level) {
+		case TRACE: log.trace(message, t); break;
+		case DEBUG: log.debug(message, t); break;
+		case INFO:  log.info(message, t);  break;
+		case WARN:  log.warn(message, t);  break;
+		case ERROR: log.error(message, t); break;
+		case FATAL: log.fatal(message, t); break;
+		case OFF:
+		}
+	}
+
+	/**
+	 * ログを固定長のバッファーに追加し、専用のスレッドで出力します。
+	 * バッファーがいっぱいの場合は最も古いログを破棄し、破棄した件数を次に出力するときに報告します。
+	 */
+	private static class AsyncAppender implements Runnable {
+		private BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(ASYNC_BUFFER_SIZE);
+		private AtomicLong dropped = new AtomicLong();
+		private static boolean isHookRegistered;
+
+		private volatile boolean isShutdown;
+		private Thread thread;
+
+		AsyncAppender() {
+			thread = new Thread(this, "LogFilter");
+			thread.setDaemon(true);
+			thread.start();
+			registerShutdownHook();
+		}
+
+		/**
+		 * 終了時にその時点の appender の出力待ちのログを書き出すフックを登録します。
+		 * setAsync を切り替えるたびにフックが増えないように、フックは 1 つだけ登録します。
+		 * (shutdown した AsyncAppender のログは、そのスレッドが終了する前に書き出します。)
+		 */
+		private static synchronized void registerShutdownHook() {
+			if(isHookRegistered) {
+				return;
+			}
+			isHookRegistered = true;
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				AsyncAppender current = appender;
+				if(current != null) {
+					current.drain();
+				}
+			}, "LogFilter-shutdown"));
+		}
+
+		void append(Log log, Level level, Object message, Throwable t) {
+			Record record = new Record(log, level, message, t);
+			while(!queue.offer(record)) {
+				if(queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+		}
+
+		void shutdown() {
+			isShutdown = true;
+			thread.interrupt();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!isShutdown) {
+					write(queue.take());
+				}
+			} catch(InterruptedException e) {
+				// shutdown で中断されました。
+			}
+			drain();
+		}
+
+		private synchronized void drain() {
+			Record record;
+			while((record = queue.poll()) != null) {
+				write(record);
+			}
+		}
+
+		private synchronized void write(Record record) {
+			long n = dropped.getAndSet(0);
+			if(n > 0) {
+				record.log.warn(n + " log messages were dropped.");
+			}
+			try {
+				LogFilter.write(record.log, record.level, record.message, record.throwable);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Record {
+		final Log log;
+		final Level level;
+		final Object message;
+		final Throwable throwable;
+
+		Record(Log log, Level level, Object message, Throwable throwable) {
+			this.log = log;
+			this.level = level;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
 }
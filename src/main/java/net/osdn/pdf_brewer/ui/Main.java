@@ -6,6 +6,12 @@ import net.osdn.util.javafx.application.SingletonApplication;
 public class Main {
 
 	public static void main(String[] args) {
+		if(args.length > 0 && args[0].equals(BatchCompiler.OPTION)) {
+			String[] rest = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			BatchCompiler.main(rest);
+			return;
+		}
 		Platform.setImplicitExit(false);
 		SingletonApplication.launch(MainApp.class, args);
 	}
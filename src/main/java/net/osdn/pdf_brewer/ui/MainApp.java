@@ -4,17 +4,25 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CancellationException;
 import java.util.prefs.Preferences;
 
+import org.apache.pdfbox.pdmodel.PDDocument;
+
 import javafx.beans.binding.StringBinding;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker.State;
 import net.osdn.util.javafx.application.SingletonApplication;
 import net.osdn.util.javafx.fxml.Fxml;
 import net.osdn.util.javafx.scene.control.pdf.Pager;
-import net.osdn.util.javafx.scene.control.pdf.PdfView;
 import net.osdn.util.javafx.stage.StageUtil;
 
 import javafx.application.Platform;
@@ -24,7 +32,10 @@ import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.CheckMenuItem;
+import javafx.scene.control.Label;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
 import javafx.scene.input.DragEvent;
 import javafx.scene.input.TransferMode;
@@ -37,10 +48,17 @@ public class MainApp extends SingletonApplication implements Initializable {
 	public static final String APPLICATION_NAME = "PDF BREWER";
 	public static final String APPLICATION_VERSION;
 
+	/** 処理時間の履歴に保持する読み込みの数です。 */
+	private static final int TIMINGS_HISTORY_SIZE = 20;
+
 	static {
 		System.setProperty("org.apache.commons.logging.LogFactory", "net.osdn.pdf_brewer.ui.LogFilter");
 		LogFilter.setLevel("org.apache.pdfbox", LogFilter.Level.ERROR);
 		LogFilter.setLevel("org.apache.fontbox", LogFilter.Level.ERROR);
+		// PDFBox のログの出力で描画スレッドが待たされないようにします。
+		if(System.getProperty(LogFilter.ASYNC_PROPERTY) == null) {
+			LogFilter.setAsync(true);
+		}
 
 		int[] version = Datastore.getApplicationVersion();
 		if(version != null) {
@@ -57,6 +75,9 @@ public class MainApp extends SingletonApplication implements Initializable {
 	private String title = "PDF BREWER";
 	private File   inputFile;
 	private File   lastSaveFolder;
+	private LoadCoordinator loadCoordinator;
+	private DocumentWatcher watcher;
+	private Deque<StageTimings> timingsHistory = new ArrayDeque<StageTimings>();
 	
 	@Override
 	public void start(Stage primaryStage) throws Exception {
@@ -92,12 +113,18 @@ public class MainApp extends SingletonApplication implements Initializable {
 		primaryStage.show();
 
 		Thread.currentThread().setUncaughtExceptionHandler(handler);
+
+		// ウィンドウの表示を遅らせないように、表示した後でウォームアップを開始します。
+		WarmUp.start();
 	}
 	
 	protected UncaughtExceptionHandler handler = new UncaughtExceptionHandler() {
 		@Override
 		public void uncaughtException(Thread t, Throwable e) {
-			if(e instanceof Exception) {
+			if(e instanceof CancellationException) {
+				// 新しい読み込みによって中止された読み込みです。
+				return;
+			} else if(e instanceof Exception) {
 				showException((Exception)e);
 			} else if(Thread.getDefaultUncaughtExceptionHandler() != null) {
 				Thread.getDefaultUncaughtExceptionHandler().uncaughtException(t, e);
@@ -127,14 +154,20 @@ public class MainApp extends SingletonApplication implements Initializable {
 
 	@FXML MenuItem menuFileOpen;
 	@FXML MenuItem menuFileSave;
+	@FXML CheckMenuItem menuFileWatch;
+	@FXML CheckMenuItem menuFileTimings;
+	@FXML CheckMenuItem menuFileThumbnails;
 	@FXML MenuItem menuFileExit;
 	@FXML Pager    pager;
-	@FXML PdfView  pdfView;
+	@FXML ExtendedPdfView pdfView;
+	@FXML ThumbnailView thumbnailView;
+	@FXML Label    timingsLabel;
 	@FXML Toast    toast;
 	ObjectProperty<File> inputFileProperty = new SimpleObjectProperty<File>();
 	
 	@Override
 	public void initialize(URL location, ResourceBundle resources) {
+		loadCoordinator = new LoadCoordinator(pdfView);
 
 		//
 		// event handlers
@@ -143,6 +176,46 @@ public class MainApp extends SingletonApplication implements Initializable {
 		menuFileSave.setOnAction(wrap(this::menuFileSave_onAction));
 		menuFileExit.setOnAction(wrap(this::menuFileExit_onAction));
 
+		//
+		// watch
+		//
+		Preferences preferences = Preferences.userNodeForPackage(getClass());
+		menuFileWatch.setSelected(preferences.getBoolean("watch", true));
+		menuFileWatch.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			preferences.putBoolean("watch", newValue);
+			watch(loadCoordinator.getLatest());
+		});
+		try {
+			watcher = new DocumentWatcher(() -> Platform.runLater(wrap(this::reload)));
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+
+		//
+		// timings
+		//
+		menuFileTimings.setSelected(preferences.getBoolean("timings", false));
+		menuFileTimings.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			preferences.putBoolean("timings", newValue);
+		});
+		timingsLabel.visibleProperty().bind(menuFileTimings.selectedProperty());
+		timingsLabel.managedProperty().bind(menuFileTimings.selectedProperty());
+		timingsLabel.setTooltip(new Tooltip());
+		pdfView.lastRenderProperty().addListener((observable, oldValue, newValue) -> {
+			updateTimings();
+		});
+
+		//
+		// thumbnails
+		//
+		menuFileThumbnails.setSelected(preferences.getBoolean("thumbnails", true));
+		menuFileThumbnails.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			preferences.putBoolean("thumbnails", newValue);
+		});
+		thumbnailView.visibleProperty().bind(menuFileThumbnails.selectedProperty());
+		thumbnailView.managedProperty().bind(menuFileThumbnails.selectedProperty());
+		thumbnailView.setPdfView(pdfView);
+
 		//
 		// bindings
 		//
@@ -184,7 +257,7 @@ public class MainApp extends SingletonApplication implements Initializable {
 			toast.hide();
 			lastSaveFolder = null;
 			inputFileProperty.set(file);
-			pdfView.load(new DocumentLoader(file.toPath()));
+			load(file);
 			event.setDropCompleted(true);
 		}
 		event.consume();
@@ -214,12 +287,103 @@ public class MainApp extends SingletonApplication implements Initializable {
 				toast.hide();
 				lastSaveFolder = null;
 				inputFileProperty.set(file);
-				pdfView.load(new DocumentLoader(file.toPath()));
+				load(file);
+			}
+		}
+	}
+
+	protected void load(File file) {
+		load(file, 0);
+	}
+
+	protected void load(File file, int pageIndex) {
+		// 読み込み中のドキュメントがあれば LoadCoordinator が中止します。
+		DocumentLoader loader = new DocumentLoader(file.toPath());
+		long startNanos = System.nanoTime();
+		pdfView.setTimings(loader.getTimings());
+		thumbnailView.setDocumentLoader(loader);
+		Task<PDDocument> task = loadCoordinator.load(loader, pageIndex);
+		task.stateProperty().addListener((observable, oldValue, newValue) -> {
+			if(newValue == State.SUCCEEDED || newValue == State.FAILED || newValue == State.CANCELLED) {
+				if(loadCoordinator.isCurrent(loader)) {
+					watch(loader);
+				}
+			}
+			if(newValue == State.SUCCEEDED && loadCoordinator.isCurrent(loader)) {
+				addTimings(loader.getTimings(), System.nanoTime() - startNanos);
+			}
+		});
+	}
+
+	/**
+	 * 読み込みの処理時間を履歴に追加します。
+	 * DocumentLoader で計測されない時間(描画スレッドの待機や PdfView による先読み)は「その他」として記録します。
+	 */
+	protected void addTimings(StageTimings timings, long elapsedNanos) {
+		long measured = timings.getTotalNanos();
+		StageTimings.Entry render = timings.getEntry(ExtendedPdfView.RENDER_STAGE);
+		if(render != null) {
+			measured -= render.getNanos();
+		}
+		timings.record("その他", Math.max(0, elapsedNanos - measured), -1);
+
+		timingsHistory.addFirst(timings);
+		while(timingsHistory.size() > TIMINGS_HISTORY_SIZE) {
+			timingsHistory.removeLast();
+		}
+		updateTimings();
+	}
+
+	protected void updateTimings() {
+		DocumentLoader loader = loadCoordinator.getLatest();
+		StageTimings current = (loader != null) ? loader.getTimings() : null;
+		timingsLabel.setText(current != null ? current.toString() : "");
+
+		StringBuilder sb = new StringBuilder();
+		if(current != null) {
+			sb.append(current.toDetailString());
+		}
+		if(!timingsHistory.isEmpty()) {
+			SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+			sb.append("\n履歴 (合計)\n");
+			for(StageTimings timings : timingsHistory) {
+				sb.append(format.format(new Date(timings.getCreatedAt())))
+					.append('\t').append(StageTimings.formatMillis(timings.getTotalNanos()))
+					.append('\t').append(timings.getName())
+					.append('\n');
+			}
+		}
+		timingsLabel.getTooltip().setText(sb.toString().trim());
+	}
+
+	/**
+	 * 入力ファイルを読み込み直します。表示中のページは維持されます。
+	 */
+	protected void reload() {
+		File file = inputFileProperty.get();
+		if(file == null || !menuFileWatch.isSelected()) {
+			return;
+		}
+		int pageIndex = loadCoordinator.isLoading() ? loadCoordinator.getRequestedPageIndex() : pdfView.getPageIndex();
+		load(file, pageIndex);
+	}
+
+	protected void watch(DocumentLoader loader) {
+		if(watcher == null) {
+			return;
+		}
+		try {
+			if(loader != null && menuFileWatch.isSelected()) {
+				watcher.watch(loader.getDependencies());
+			} else {
+				watcher.unwatch();
 			}
+		} catch(IOException e) {
+			showException(e);
 		}
 	}
 
-	void menuFileSave_onAction(ActionEvent event) throws IOException {
+	void menuFileSave_onAction(ActionEvent event) throws Exception {
 		toast.hide();
 		String defaultName = inputFileProperty.get().getName();
 		int i = defaultName.lastIndexOf('.');
@@ -241,9 +405,29 @@ public class MainApp extends SingletonApplication implements Initializable {
 		File file = fc.showSaveDialog(getPrimaryStage());
 		if(file != null) {
 			lastSaveFolder = file.getParentFile();
-			if(pdfView.getDocument() != null) {
-				pdfView.getDocument().save(file);
-				toast.show(Toast.GREEN, "保存しました", file.getAbsolutePath(), Toast.LONG);
+			DocumentLoader loader = loadCoordinator.getLatest();
+			if(pdfView.getDocument() != null && loader != null) {
+				Task<Void> task = new Task<Void>() {
+					@Override
+					protected Void call() throws Exception {
+						loader.save(file);
+						return null;
+					}
+				};
+				task.setOnSucceeded(e -> {
+					updateTimings();
+					toast.show(Toast.GREEN, "保存しました", file.getAbsolutePath(), Toast.LONG);
+				});
+				task.setOnFailed(e -> showException(task.getException()));
+				if(loader.isIncremental()) {
+					// .pb と .yml は入力ファイルから生成し直すので、描画を待たせないように別のスレッドで保存します。
+					Thread thread = new Thread(task, "Save");
+					thread.setDaemon(true);
+					thread.start();
+				} else {
+					// PDDocument はスレッドセーフではないため、表示中のドキュメントは描画と同じワーカースレッドで保存します。
+					pdfView.execute(task);
+				}
 			}
 		}
 	}
@@ -0,0 +1,152 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import javafx.scene.image.WritableImage;
+
+/**
+ * PdfView で描画したページの画像を保持する LRU キャッシュです。
+ *
+ * ページはドキュメント、ページ番号、描画領域のサイズで識別されます。
+ * 保持する画像の合計サイズ(幅 × 高さ × 4 バイト)がシステムプロパティ {@value #MAX_SIZE_PROPERTY} (MB 単位、既定値は 128)を超えると、
+ * 最も長い間使われていないページから破棄します。
+ */
+public class PageCache {
+
+	public static final String MAX_SIZE_PROPERTY = "pdf-brewer.page-cache";
+	private static final long DEFAULT_MAX_SIZE_MB = 128;
+
+	public static long getDefaultMaxSize() {
+		long mb = DEFAULT_MAX_SIZE_MB;
+		try {
+			mb = Long.parseLong(System.getProperty(MAX_SIZE_PROPERTY, Long.toString(DEFAULT_MAX_SIZE_MB)).trim());
+		} catch(NumberFormatException e) {
+			e.printStackTrace();
+		}
+		return Math.max(0, mb) * 1024 * 1024;
+	}
+
+	private long maxSize;
+	private long size;
+	private Map<Key, Page> pages = new LinkedHashMap<Key, Page>(16, 0.75f, true);
+
+	public PageCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public synchronized Page get(PDDocument document, int pageIndex, int width, int height) {
+		return pages.get(new Key(document, pageIndex, width, height));
+	}
+
+	/**
+	 * ページがキャッシュされていれば true を返します。(LRU の順序は変わりません。)
+	 */
+	public synchronized boolean contains(PDDocument document, int pageIndex, int width, int height) {
+		return pages.containsKey(new Key(document, pageIndex, width, height));
+	}
+
+	public synchronized void put(PDDocument document, int pageIndex, int width, int height, Page page) {
+		long length = page.getSize();
+		if(length > maxSize) {
+			return;
+		}
+		Page old = pages.put(new Key(document, pageIndex, width, height), page);
+		if(old != null) {
+			size -= old.getSize();
+		}
+		size += length;
+		Iterator<Page> it = pages.values().iterator();
+		while(size > maxSize && it.hasNext()) {
+			Page eldest = it.next();
+			it.remove();
+			size -= eldest.getSize();
+		}
+	}
+
+	/**
+	 * document 以外のドキュメントのページを破棄します。
+	 */
+	public synchronized void retain(PDDocument document) {
+		Iterator<Map.Entry<Key, Page>> it = pages.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Key, Page> e = it.next();
+			if(e.getKey().document != document) {
+				it.remove();
+				size -= e.getValue().getSize();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		pages.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * 描画したページの画像と、描画に使用した倍率です。
+	 */
+	public static class Page {
+		private final WritableImage image;
+		private final double scale;
+
+		public Page(WritableImage image, double scale) {
+			this.image = image;
+			this.scale = scale;
+		}
+
+		public WritableImage getImage() {
+			return image;
+		}
+
+		public double getScale() {
+			return scale;
+		}
+
+		public long getSize() {
+			return (long)image.getWidth() * (long)image.getHeight() * 4;
+		}
+	}
+
+	/**
+	 * ドキュメントは同一性で比較します。(読み込み直したドキュメントは別のドキュメントとして扱われます。)
+	 */
+	private static class Key {
+		private final PDDocument document;
+		private final int pageIndex;
+		private final int width;
+		private final int height;
+
+		Key(PDDocument document, int pageIndex, int width, int height) {
+			this.document = document;
+			this.pageIndex = pageIndex;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return document == other.document && pageIndex == other.pageIndex && width == other.width && height == other.height;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((System.identityHashCode(document) * 31 + pageIndex) * 31 + width) * 31 + height;
+		}
+	}
+}
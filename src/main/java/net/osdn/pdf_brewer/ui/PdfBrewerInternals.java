@@ -0,0 +1,103 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import net.osdn.pdf_brewer.PdfBrewer;
+import net.osdn.pdf_brewer.instruction.Image;
+
+/**
+ * pdf-brewer (0.4.7)が公開していないフィールドへのアクセスをまとめたクラスです。
+ *
+ * 使用するフィールドは Image.file、Image.scale、PdfBrewer.document だけで、クラスの初期化時に一度だけ取得します。
+ * ライブラリの更新でフィールドが見つからない、または型が変わった場合は、その旨を標準エラーに一度だけ出力し、
+ * 呼び出し側はフィールドを使用しない処理(ライブラリ本来の処理)に切り替えます。
+ * 取得したフィールドの読み書きで例外が発生した場合は、原因を含めた IllegalStateException をスローします。
+ */
+final class PdfBrewerInternals {
+
+	private static final Field imageFileField = find(Image.class, "file", File.class);
+	private static final Field imageScaleField = find(Image.class, "scale", float.class);
+	private static final Field documentField = find(PdfBrewer.class, "document", PDDocument.class);
+
+	private PdfBrewerInternals() {
+	}
+
+	private static Field find(Class<?> cls, String name, Class<?> type) {
+		try {
+			Field field = cls.getDeclaredField(name);
+			if(field.getType() != type) {
+				throw new NoSuchFieldException(name + " is " + field.getType().getName());
+			}
+			field.setAccessible(true);
+			return field;
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			System.err.println("[pdf-brewer] " + cls.getName() + "." + name + " (" + type.getName() + ") を参照できません。"
+					+ "pdf-brewer ライブラリの非公開フィールドが変更された可能性があります。このフィールドを使用する機能は無効になります: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Image 命令の画像ファイルと倍率を参照できる場合は true を返します。
+	 */
+	static boolean isImageAvailable() {
+		return imageFileField != null && imageScaleField != null;
+	}
+
+	/**
+	 * PdfBrewer の PDDocument を置き換えられる場合は true を返します。
+	 */
+	static boolean isDocumentAvailable() {
+		return documentField != null;
+	}
+
+	/**
+	 * Image 命令が参照している画像ファイルを返します。isImageAvailable が false の場合は null を返します。
+	 */
+	static File getImageFile(Image image) {
+		if(imageFileField == null) {
+			return null;
+		}
+		try {
+			return (File)imageFileField.get(image);
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException("Image.file を読み取れません。", e);
+		}
+	}
+
+	static float getImageScale(Image image) {
+		if(imageScaleField == null) {
+			throw new IllegalStateException("Image.scale を参照できません。");
+		}
+		try {
+			return imageScaleField.getFloat(image);
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException("Image.scale を読み取れません。", e);
+		}
+	}
+
+	static PDDocument getDocument(PdfBrewer brewer) {
+		if(documentField == null) {
+			throw new IllegalStateException("PdfBrewer.document を参照できません。");
+		}
+		try {
+			return (PDDocument)documentField.get(brewer);
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException("PdfBrewer.document を読み取れません。", e);
+		}
+	}
+
+	static void setDocument(PdfBrewer brewer, PDDocument document) {
+		if(documentField == null) {
+			throw new IllegalStateException("PdfBrewer.document を参照できません。");
+		}
+		try {
+			documentField.set(brewer, document);
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException("PdfBrewer.document を置き換えられません。", e);
+		}
+	}
+}
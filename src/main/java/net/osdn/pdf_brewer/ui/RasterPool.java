@@ -0,0 +1,76 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * ページの描画に使用する BufferedImage を再利用するためのプールです。
+ *
+ * 描画のたびにページ全体の大きさの BufferedImage を作成すると、描画領域が大きいほど多くのメモリーを割り当てることになります。
+ * RasterPool は返却された BufferedImage を保持し、同じ大きさの要求に再利用します。
+ * 保持する BufferedImage の合計サイズが maxSize を超えると、最も長い間使われていないものから破棄します。
+ * (描画領域のサイズが変わると古い大きさの BufferedImage は使われなくなり、いずれ破棄されます。)
+ *
+ * 取得した BufferedImage の内容は不定です。使用する前に消去してください。
+ */
+public class RasterPool {
+
+	private int type;
+	private long maxSize;
+	private long size;
+	private Deque<BufferedImage> idle = new ArrayDeque<BufferedImage>();
+
+	public RasterPool(int type, long maxSize) {
+		this.type = type;
+		this.maxSize = maxSize;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public BufferedImage acquire(int width, int height) {
+		synchronized(this) {
+			Iterator<BufferedImage> it = idle.iterator();
+			while(it.hasNext()) {
+				BufferedImage image = it.next();
+				if(image.getWidth() == width && image.getHeight() == height) {
+					it.remove();
+					size -= getSize(image);
+					return image;
+				}
+			}
+		}
+		return new BufferedImage(width, height, type);
+	}
+
+	public synchronized void release(BufferedImage image) {
+		if(image == null || image.getType() != type) {
+			return;
+		}
+		long length = getSize(image);
+		if(length > maxSize) {
+			return;
+		}
+		idle.addFirst(image);
+		size += length;
+		while(size > maxSize) {
+			size -= getSize(idle.removeLast());
+		}
+	}
+
+	public synchronized void clear() {
+		idle.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private static long getSize(BufferedImage image) {
+		return (long)image.getWidth() * (long)image.getHeight() * 4;
+	}
+}
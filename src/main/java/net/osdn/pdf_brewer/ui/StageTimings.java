@@ -0,0 +1,223 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1 回の読み込みの処理段階ごとの所要時間と割り当てたメモリー量を記録します。
+ *
+ * 割り当てたメモリー量は段階を実行したスレッドで割り当てられた量です。
+ * (IncrementalBrewer が ForkJoinPool で並列に生成したチャンクの割り当ては含まれません。)
+ * 割り当て量を取得できない JVM では -1 になります。
+ *
+ * start で計測した段階は Java Flight Recorder にも FlightRecorderEvents.Stage として記録されます。
+ */
+public class StageTimings {
+
+	private static final com.sun.management.ThreadMXBean threadMXBean;
+
+	static {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean sunBean = null;
+		try {
+			if(bean instanceof com.sun.management.ThreadMXBean) {
+				sunBean = (com.sun.management.ThreadMXBean)bean;
+				if(sunBean.isThreadAllocatedMemorySupported() && !sunBean.isThreadAllocatedMemoryEnabled()) {
+					sunBean.setThreadAllocatedMemoryEnabled(true);
+				}
+				if(!sunBean.isThreadAllocatedMemorySupported()) {
+					sunBean = null;
+				}
+			}
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+			sunBean = null;
+		}
+		threadMXBean = sunBean;
+	}
+
+	private final long createdAt = System.currentTimeMillis();
+	private final String name;
+	private final String input;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	public StageTimings(String name) {
+		this(name, null);
+	}
+
+	/**
+	 * @param name 表示名
+	 * @param input Java Flight Recorder のイベントに記録する入力ファイルのパス
+	 */
+	public StageTimings(String name, String input) {
+		this.name = name;
+		this.input = input;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getInput() {
+		return input;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * 段階の計測を開始します。返された Stage の stop を finally で呼び出すと計測結果が記録されます。
+	 * 同じ名前の段階を複数回計測した場合は合計されます。
+	 */
+	public Stage start(String stage) {
+		return new Stage(stage);
+	}
+
+	/**
+	 * 段階の計測結果を記録します。同じ名前の段階が記録されている場合は置き換えます。
+	 */
+	public synchronized void record(String stage, long nanos, long allocatedBytes) {
+		entries.put(stage, new Entry(stage, nanos, allocatedBytes));
+	}
+
+	private synchronized void add(String stage, long nanos, long allocatedBytes) {
+		Entry old = entries.get(stage);
+		if(old != null) {
+			nanos += old.nanos;
+			allocatedBytes = (old.allocatedBytes < 0 || allocatedBytes < 0) ? -1 : (old.allocatedBytes + allocatedBytes);
+		}
+		entries.put(stage, new Entry(stage, nanos, allocatedBytes));
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	public synchronized Entry getEntry(String stage) {
+		return entries.get(stage);
+	}
+
+	/**
+	 * 記録されているすべての段階の所要時間の合計を返します。
+	 */
+	public synchronized long getTotalNanos() {
+		long total = 0;
+		for(Entry entry : entries.values()) {
+			total += entry.nanos;
+		}
+		return total;
+	}
+
+	/**
+	 * 「YAML 12 ms | FreeMarker 30 ms | …」の形式で所要時間を返します。
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Entry entry : getEntries()) {
+			if(sb.length() > 0) {
+				sb.append(" | ");
+			}
+			sb.append(entry.getName()).append(' ').append(formatMillis(entry.getNanos()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 段階ごとに所要時間と割り当てたメモリー量を 1 行ずつ返します。
+	 */
+	public String toDetailString() {
+		StringBuilder sb = new StringBuilder();
+		for(Entry entry : getEntries()) {
+			sb.append(entry.getName()).append('\t').append(formatMillis(entry.getNanos()));
+			if(entry.getAllocatedBytes() >= 0) {
+				sb.append('\t').append(formatBytes(entry.getAllocatedBytes()));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	public static String formatMillis(long nanos) {
+		return String.format("%,d ms", nanos / 1000000);
+	}
+
+	public static String formatBytes(long bytes) {
+		if(bytes < 1024 * 1024) {
+			return String.format("%,d KB", bytes / 1024);
+		}
+		return String.format("%,.1f MB", bytes / 1024.0 / 1024.0);
+	}
+
+	/**
+	 * 現在のスレッドがこれまでに割り当てたメモリー量を返します。取得できない場合は -1 を返します。
+	 */
+	protected static long getAllocatedBytes() {
+		if(threadMXBean == null) {
+			return -1;
+		}
+		return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static class Entry {
+		private final String name;
+		private final long nanos;
+		private final long allocatedBytes;
+
+		public Entry(String name, long nanos, long allocatedBytes) {
+			this.name = name;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+	}
+
+	/**
+	 * 1 つの段階の計測です。
+	 *
+	 * 段階の処理では Stage を参照しないため、try-with-resources で使用すると -Xlint:try の警告になります。
+	 * start の直後の try の finally で stop を呼び出してください。
+	 */
+	public class Stage {
+		private final String stage;
+		private final long startNanos;
+		private final long startBytes;
+		private final FlightRecorderEvents.Stage event = new FlightRecorderEvents.Stage();
+
+		private Stage(String stage) {
+			this.stage = stage;
+			this.startBytes = getAllocatedBytes();
+			this.startNanos = System.nanoTime();
+			event.begin();
+		}
+
+		public void stop() {
+			event.end();
+			long nanos = System.nanoTime() - startNanos;
+			long bytes = (startBytes < 0) ? -1 : (getAllocatedBytes() - startBytes);
+			add(stage, nanos, bytes);
+			if(event.shouldCommit()) {
+				event.input = input;
+				event.stage = stage;
+				event.allocated = bytes;
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import net.osdn.pdf_brewer.BrewerData;
+import net.osdn.pdf_brewer.FontLoader;
+import net.osdn.pdf_brewer.instruction.Image;
+import net.osdn.pdf_brewer.instruction.Instruction;
+import net.osdn.util.io.AutoDetectReader;
+
+/**
+ * .pb ファイルを少しずつ読み込んで命令を返します。
+ *
+ * BrewerData はファイル全体の行と命令をすべてメモリーに保持しますが、
+ * StreamingBrewerData は iterator で命令を取り出すたびに数百行ずつ読み込んで解析します。
+ * 命令の一覧を持たないので BrewerData ではありません。ExtendedPdfBrewer.process(StreamingBrewerData) で処理してください。
+ * 同時に使用できる Iterator は 1 つだけです。
+ *
+ * 用紙サイズはファイルの最初の \media で決まるため、コンストラクターで一度ファイル全体を走査して探します。
+ */
+public class StreamingBrewerData implements Iterable<Instruction>, Closeable {
+
+	/** 一度に解析する行数です。 */
+	private static final int BATCH_LINES = 256;
+
+	private Path path;
+	private FontLoader fontLoader;
+	private PDRectangle mediaBox;
+	private Set<Path> imageFiles = new LinkedHashSet<Path>();
+	private BufferedReader reader;
+
+	public StreamingBrewerData(Path path, FontLoader fontLoader) throws IOException {
+		if(!Files.exists(path) || Files.isDirectory(path)) {
+			throw new IllegalArgumentException();
+		}
+		if(!path.getFileName().toString().toLowerCase().endsWith(".pb")) {
+			throw new IllegalArgumentException();
+		}
+		this.path = path;
+		this.fontLoader = fontLoader;
+		this.mediaBox = findMediaBox();
+	}
+
+	/**
+	 * ファイルの最初の \media の用紙サイズを返します。\media がない場合は null を返します。
+	 */
+	public PDRectangle getMediaBox() {
+		return mediaBox;
+	}
+
+	/**
+	 * これまでに読み込んだ Image 命令が参照している画像ファイルを返します。
+	 */
+	public Set<Path> getImageFiles() {
+		return Collections.unmodifiableSet(imageFiles);
+	}
+
+	/**
+	 * ファイルの先頭から命令を読み込む Iterator を返します。
+	 * 読み込み中に発生した IOException は UncheckedIOException にラップしてスローされます。
+	 * 前に返した Iterator が最後まで読み込まれていない場合は IllegalStateException をスローします。(close すると再び取得できます。)
+	 */
+	@Override
+	public Iterator<Instruction> iterator() {
+		if(reader != null) {
+			throw new IllegalStateException("iterator already in use");
+		}
+		try {
+			reader = new BufferedReader(new AutoDetectReader(path));
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		BufferedReader r = reader;
+		return new Iterator<Instruction>() {
+			private Iterator<Instruction> batch = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while(!batch.hasNext()) {
+						List<String> lines = readLines(r);
+						if(lines.isEmpty()) {
+							close();
+							return false;
+						}
+						List<Instruction> instructions = new BrewerData(lines, fontLoader).getInstructions();
+						for(Instruction instruction : instructions) {
+							if(instruction instanceof Image) {
+								File file = DocumentLoader.getFile((Image)instruction);
+								if(file != null) {
+									imageFiles.add(file.toPath());
+								}
+							}
+						}
+						batch = instructions.iterator();
+					}
+					return true;
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public Instruction next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.next();
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(reader != null) {
+			try {
+				reader.close();
+			} finally {
+				reader = null;
+			}
+		}
+	}
+
+	private static List<String> readLines(BufferedReader reader) throws IOException {
+		List<String> lines = new ArrayList<String>(BATCH_LINES);
+		String line;
+		while(lines.size() < BATCH_LINES && (line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * ファイルの最初の \media の用紙サイズを返します。\media がない場合は null を返します。
+	 */
+	private PDRectangle findMediaBox() throws IOException {
+		try(BufferedReader r = new BufferedReader(new AutoDetectReader(path))) {
+			String line;
+			while((line = r.readLine()) != null) {
+				if(isMedia(line)) {
+					PDRectangle rect = new BrewerData(Collections.singletonList(line), fontLoader).getMediaBox();
+					if(rect != null) {
+						return rect;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isMedia(String line) {
+		int i = 0;
+		while(i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t' || line.charAt(i) == '　')) {
+			i++;
+		}
+		return line.regionMatches(true, i, "\\media", 0, 6);
+	}
+}
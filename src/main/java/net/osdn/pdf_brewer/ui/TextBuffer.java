@@ -0,0 +1,579 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+import net.osdn.pdf_brewer.Context;
+import net.osdn.pdf_brewer.Horizontal;
+import net.osdn.pdf_brewer.Overflow;
+import net.osdn.pdf_brewer.PdfBrewer;
+import net.osdn.pdf_brewer.Vertical;
+import net.osdn.pdf_brewer.instruction.Instruction;
+import net.osdn.pdf_brewer.instruction.text.Font;
+import net.osdn.pdf_brewer.instruction.text.LineHeight;
+import net.osdn.pdf_brewer.instruction.text.Text;
+import net.osdn.pdf_brewer.instruction.text.TextAlign;
+import net.osdn.pdf_brewer.instruction.text.TextBufferingInstruction;
+import net.osdn.pdf_brewer.instruction.text.TextOverflow;
+
+/**
+ * net.osdn.pdf_brewer.TextBuffer と同じ配置を行うテキストバッファーです。
+ *
+ * 文字列の幅は PDFont.getStringWidth ではなく、フォントごとに保持する GlyphWidths から求めます。
+ * GlyphWidths はこの TextBuffer を使用するドキュメントの処理が終わるまで保持されます。
+ */
+public class TextBuffer {
+
+	private List<Op> ops = new ArrayList<Op>();
+	private Map<PDFont, GlyphWidths> widths = new IdentityHashMap<PDFont, GlyphWidths>();
+
+	public void add(TextBufferingInstruction instruction) throws IOException {
+		if(instruction instanceof Text) {
+			Text textInstruction = (Text)instruction;
+			List<Op> list = split(textInstruction.getText());
+			if(list.get(0) instanceof TextOp) {
+				Op last = null;
+				if(ops.size() > 0) {
+					last = ops.get(ops.size() - 1);
+				}
+				if(last instanceof TextOp) {
+					TextOp op = (TextOp)list.remove(0);
+					((TextOp)last).text = ((TextOp)last).text + op.text;
+				}
+			}
+			for(Op op : list) {
+				ops.add(op);
+			}
+		} else if(instruction instanceof Font) {
+			Font fontInstruction = (Font)instruction;
+			ops.add(new FontOp(fontInstruction.getFontName(), fontInstruction.getFontSize()));
+		} else if(instruction instanceof LineHeight) {
+			LineHeight lineHeightInstruction = (LineHeight)instruction;
+			if(lineHeightInstruction.getLineHeight() >= 0.0) {
+				ops.add(new LineHeightOp(lineHeightInstruction.getLineHeight()));
+			}
+		} else if(instruction instanceof TextAlign) {
+			TextAlign textAlignInstruction = (TextAlign)instruction;
+			if(textAlignInstruction.getTextAlignment() != null) {
+				ops.add(new TextAlignOp(textAlignInstruction.getTextAlignment()));
+			}
+		} else if(instruction instanceof TextOverflow) {
+			TextOverflow textOverflowInstruction = (TextOverflow)instruction;
+			if(textOverflowInstruction.getTextOverflow() != null) {
+				ops.add(new TextOverflowOp(textOverflowInstruction.getTextOverflow()));
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return ops.isEmpty();
+	}
+
+	public void clear() {
+		ops.clear();
+	}
+
+	/**
+	 * バッファーの状態命令(\font, \line-height, \text-align, \text-overflow)をコンテキストに設定します。
+	 * process と同じ状態をコンテキストに残しますが、コンテンツストリームには何も出力しません。(文字列は無視されます。)
+	 */
+	public void apply(PdfBrewer brewer, Context context) throws IOException {
+		PDFont font = brewer.loadFont(context.getFontName());
+		float fontSize = context.getFontSize();
+		for(Op op : ops) {
+			if(op instanceof FontOp) {
+				FontOp fontOp = (FontOp)op;
+				if(fontOp.fontName != null) {
+					PDFont f = brewer.loadFont(fontOp.fontName);
+					if(f != null) {
+						font = f;
+					}
+				}
+				if(fontOp.fontSize > 0.0) {
+					fontSize = fontOp.fontSize;
+				}
+				if(font == null || !(fontSize > 0.0)) {
+					continue;
+				}
+				context.setFont(fontOp.fontName, fontOp.fontSize);
+			} else if(op instanceof TextAlignOp) {
+				context.setTextAlignment(((TextAlignOp)op).textAlign);
+			} else if(op instanceof TextOverflowOp) {
+				context.setTextOverflow(((TextOverflowOp)op).textOverflow);
+			} else if(op instanceof LineHeightOp) {
+				context.setLineHeight(((LineHeightOp)op).lineHeight);
+			}
+		}
+	}
+
+	/**
+	 * フォントの GlyphWidths を返します。font が null の場合は null を返します。
+	 */
+	protected GlyphWidths getWidths(PDFont font) {
+		if(font == null) {
+			return null;
+		}
+		GlyphWidths w = widths.get(font);
+		if(w == null) {
+			w = new GlyphWidths(font);
+			widths.put(font, w);
+		}
+		return w;
+	}
+
+	public void process(PdfBrewer brewer, Context context) throws IOException {
+		PDFont font = brewer.loadFont(context.getFontName());
+		Horizontal textAlign = context.getTextAlignment();
+		if(textAlign == null) {
+			textAlign = Horizontal.Left;
+		}
+		Overflow textOverflow = context.getTextOverflow();
+		if(textOverflow == null) {
+			textOverflow = Overflow.Wrap;
+		}
+		float fontSize = context.getFontSize();
+		float lineHeight = context.getLineHeight();
+		boolean isHeightChanged = true;
+		float maxWidth = Instruction.mm2pt(context.getRight() - context.getLeft());
+		float rest = maxWidth;
+		int lineNumber = 0;
+		float[] lineWidth = new float[1024];
+		float[] fontHeight = new float[1024];
+		float[] leading = new float[1024];
+		List<Op> ops2 = new ArrayList<Op>();
+
+		for(int i = 0; i < ops.size(); i++) {
+			Op op = ops.get(i);
+			if(op instanceof TextOp) {
+				String text = ((TextOp)op).text;
+				// 段落の文字幅の累積和は最初に行を分割するときに一度だけ求めます。
+				PrefixWidths prefix = new PrefixWidths(getWidths(font), text);
+				int begin = 0;
+				while(begin >= 0) {
+					DivideResult result = divide(rest, prefix, fontSize, begin);
+					if(result.text1 == null) {
+						float w = lineWidth[lineNumber];
+						float h = (lineNumber == 0) ? fontHeight[0] : leading[lineNumber];
+						ops2.add(new NewLineOp(w, h));
+						lineNumber++;
+						isHeightChanged = true;
+						rest = maxWidth;
+						continue;
+					}
+					if(isHeightChanged) {
+						float fh = getFontHeight(font, fontSize);
+						if(fh > fontHeight[lineNumber]) {
+							fontHeight[lineNumber] = fh;
+						}
+						float l = fh * lineHeight;
+						if(l > leading[lineNumber]) {
+							leading[lineNumber] = l;
+						}
+					}
+					if(result.end == text.length() || textOverflow == Overflow.Truncate) {
+						ops2.add(new TextOp(result.text1));
+						lineWidth[lineNumber] += result.width;
+						rest -= result.width;
+						begin = -1;
+						continue;
+					}
+					if(textOverflow == Overflow.Ellipsis) {
+						String ellipsisChar = "…";
+						GlyphWidths w = getWidths(font);
+						float ellipsisWidth = getStringWidth(w, fontSize, ellipsisChar);
+						while(result.text1.length() >= 1 && rest - result.width - ellipsisWidth < 0.0f) {
+							result.text1 = result.text1.substring(0, result.text1.length() - 1);
+							result.width = getStringWidth(w, fontSize, result.text1);
+						}
+						if(rest - result.width - ellipsisWidth >= 0.0f) {
+							result.text1 = result.text1 + ellipsisChar;
+							result.width = getStringWidth(w, fontSize, result.text1);
+						}
+						ops2.add(new TextOp(result.text1));
+						lineWidth[lineNumber] += result.width;
+						rest -= result.width;
+						begin = -1;
+						continue;
+					}
+					ops2.add(new TextOp(result.text1));
+					lineWidth[lineNumber] += result.width;
+					rest -= result.width;
+					float w = lineWidth[lineNumber];
+					float h = (lineNumber == 0) ? fontHeight[0] : leading[lineNumber];
+					ops2.add(new NewLineOp(w, h));
+					lineNumber++;
+					isHeightChanged = true;
+					rest = maxWidth;
+					begin = result.end;
+				}
+			} else if(op instanceof NewLineOp) {
+				float w = lineWidth[lineNumber];
+				float h = (lineNumber == 0) ? fontHeight[0] : leading[lineNumber];
+				ops2.add(new NewLineOp(w, h));
+				lineNumber++;
+				isHeightChanged = true;
+				rest = maxWidth;
+			} else if(op instanceof FontOp) {
+				FontOp fontOp = (FontOp)op;
+				if(fontOp.fontName != null) {
+					fontOp.font = brewer.loadFont(fontOp.fontName);
+					if(fontOp.font != null) {
+						font = fontOp.font;
+					}
+				}
+				if(fontOp.fontSize > 0.0) {
+					fontSize = fontOp.fontSize;
+				}
+				ops2.add(fontOp);
+				isHeightChanged = true;
+			} else if(op instanceof TextAlignOp) {
+				TextAlignOp textAlignOp = (TextAlignOp)op;
+				if(textAlignOp.textAlign == null) {
+					continue;
+				}
+				if(textAlign != textAlignOp.textAlign) {
+					textAlign = textAlignOp.textAlign;
+					if(lineWidth[lineNumber] > 0.0f) {
+						float w = lineWidth[lineNumber];
+						float h = (lineNumber == 0) ? fontHeight[0] : leading[lineNumber];
+						ops2.add(new NewLineOp(w, h));
+						lineNumber++;
+						isHeightChanged = true;
+						rest = maxWidth;
+					}
+				}
+				ops2.add(textAlignOp);
+			} else if(op instanceof TextOverflowOp) {
+				TextOverflowOp textOverflowOp = (TextOverflowOp)op;
+				if(textOverflowOp.textOverflow == null) {
+					continue;
+				}
+				textOverflow = textOverflowOp.textOverflow;
+				context.setTextOverflow(textOverflow);
+			} else if(op instanceof LineHeightOp) {
+				LineHeightOp lineHeightOp = (LineHeightOp)op;
+				if(!(lineHeightOp.lineHeight >= 0.0)) {
+					continue;
+				}
+				lineHeight = lineHeightOp.lineHeight;
+				float fh = getFontHeight(font, fontSize);
+				leading[lineNumber] = fh * lineHeight;
+				context.setLineHeight(lineHeight);
+			}
+		}
+		if(lineWidth[lineNumber] > 0.0f) {
+			float w = lineWidth[lineNumber];
+			float h = (lineNumber == 0) ? fontHeight[0] : leading[lineNumber];
+			ops2.add(new NewLineOp(w, h));
+		}
+
+		textAlign = context.getTextAlignment();
+		if(textAlign == null) {
+			textAlign = Horizontal.Left;
+		}
+		float width = 0.0f;
+		float height = 0.0f;
+		NewLineOp prev = new NewLineOp(0.0f, 0.0f);
+		ops2.add(0, prev);
+		for(Op op : ops2) {
+			if(op instanceof NewLineOp) {
+				NewLineOp n = (NewLineOp)op;
+				if(prev != n) {
+					if(n.width > width) {
+						width = n.width;
+					}
+					height += n.height;
+					prev.width = n.width;
+					prev.height = n.height;
+					n.width = 0.0f;
+					n.height = 0.0f;
+				}
+				n.textAlign = textAlign;
+				prev = n;
+			} else if(op instanceof TextAlignOp) {
+				prev.textAlign = textAlign = ((TextAlignOp)op).textAlign;
+			}
+		}
+
+		float pageHeight = brewer.getPage().getMediaBox().getHeight();
+		float ptX;
+		Horizontal hAlign = context.getHorizontalAlignment();
+		if(hAlign == Horizontal.Right) {
+			ptX = Instruction.mm2pt(context.getRight()) - width;
+		} else if(hAlign == Horizontal.Center) {
+			ptX = Instruction.mm2pt(context.getLeft()) + (Instruction.mm2pt(context.getRight() - context.getLeft()) - width) / 2.0f;
+		} else {
+			ptX = Instruction.mm2pt(context.getLeft());
+		}
+		float ptY;
+		Vertical vAlign = context.getVerticalAlignment();
+		if(vAlign == Vertical.Bottom) {
+			ptY = pageHeight - Instruction.mm2pt(context.getBottom()) + height;
+		} else if(vAlign == Vertical.Center) {
+			ptY = pageHeight - Instruction.mm2pt(context.getTop()) - (Instruction.mm2pt(context.getBottom() - context.getTop()) - height) / 2.0f;
+		} else {
+			ptY = pageHeight - Instruction.mm2pt(context.getTop());
+		}
+
+		float prevNewLineX = 0.0f;
+		PDPageContentStream stream = brewer.getContentStream();
+		stream.beginText();
+		stream.newLineAtOffset(ptX, ptY);
+		font = brewer.loadFont(context.getFontName());
+		fontSize = context.getFontSize();
+		if(font != null && fontSize > 0.0) {
+			stream.setFont(font, fontSize);
+		}
+		for(Op op : ops2) {
+			if(op instanceof NewLineOp) {
+				NewLineOp newLineOp = (NewLineOp)op;
+				stream.newLineAtOffset(-prevNewLineX, -newLineOp.height);
+				float x;
+				if(newLineOp.textAlign == Horizontal.Right) {
+					x = maxWidth - newLineOp.width;
+				} else if(newLineOp.textAlign == Horizontal.Center) {
+					x = (maxWidth - newLineOp.width) / 2.0f;
+				} else {
+					x = 0.0f;
+				}
+				stream.newLineAtOffset(x, 0.0f);
+				prevNewLineX = x;
+			} else if(op instanceof TextOp) {
+				stream.showText(((TextOp)op).text);
+			} else if(op instanceof FontOp) {
+				FontOp fontOp = (FontOp)op;
+				if(fontOp.font != null) {
+					font = fontOp.font;
+				}
+				if(fontOp.fontSize > 0.0) {
+					fontSize = fontOp.fontSize;
+				}
+				if(font == null || !(fontSize > 0.0)) {
+					continue;
+				}
+				stream.setFont(font, fontOp.fontSize);
+				context.setFont(fontOp.fontName, fontOp.fontSize);
+			} else if(op instanceof TextAlignOp) {
+				context.setTextAlignment(((TextAlignOp)op).textAlign);
+			}
+		}
+		stream.endText();
+	}
+
+	public static List<Op> split(String text) {
+		List<Op> ops = new ArrayList<Op>();
+		int from = 0;
+		int to;
+		while((to = text.indexOf('\n', from)) >= 0) {
+			if(to > from) {
+				ops.add(new TextOp(text.substring(from, to)));
+			}
+			ops.add(new NewLineOp(0.0f, 0.0f));
+			from = to + 1;
+		}
+		if(from < text.length()) {
+			ops.add(new TextOp(text.substring(from)));
+		}
+		return ops;
+	}
+
+	/**
+	 * text のうち maxWidth に収まる部分(text1)と残りの部分(text2)に分割します。
+	 */
+	public static DivideResult divide(float maxWidth, GlyphWidths widths, float fontSize, String text) throws IOException {
+		DivideResult result = divide(maxWidth, new PrefixWidths(widths, text), fontSize, 0);
+		if(result.end < text.length()) {
+			result.text2 = text.substring(result.end);
+		}
+		return result;
+	}
+
+	/**
+	 * 段落の begin 以降のうち maxWidth に収まる部分を text1 に格納します。
+	 * 収まらなかった部分の開始位置は end に格納されます。(text2 は設定されません。)
+	 *
+	 * 収まる位置は文字幅の累積和を二分探索して求めるため、行ごとの処理時間は段落の長さに比例しません。
+	 * 累積和は倍精度で保持しているので、見つかった位置の幅は net.osdn.pdf_brewer.TextBuffer.divide と同じ順序で合計し直し、
+	 * 丸め誤差で結果が変わらないように位置を補正します。
+	 */
+	public static DivideResult divide(float maxWidth, PrefixWidths prefix, float fontSize, int begin) throws IOException {
+		String text = prefix.text;
+		int length = text.length();
+		float width = Float.NaN;
+		if(prefix.sums == null) {
+			// 累積和を求める前(ほとんどの場合は段落の最初の行)は、残り全体が収まるかどうかを先に確認します。
+			width = getStringWidth(prefix.widths, fontSize, text, begin, length);
+		}
+		int p;
+		if(width <= maxWidth) {
+			p = length;
+		} else {
+			p = prefix.find(begin, (double)maxWidth * 1000.0 / fontSize);
+			width = getStringWidth(prefix.widths, fontSize, text, begin, p);
+			while(p > begin && width > maxWidth) {
+				p = text.offsetByCodePoints(p, -1);
+				width = getStringWidth(prefix.widths, fontSize, text, begin, p);
+			}
+			while(p < length) {
+				int q = text.offsetByCodePoints(p, 1);
+				float w = getStringWidth(prefix.widths, fontSize, text, begin, q);
+				if(w > maxWidth) {
+					break;
+				}
+				p = q;
+				width = w;
+			}
+		}
+		return new DivideResult(width, (p > begin) ? text.substring(begin, p) : null, null, p);
+	}
+	public static float getStringWidth(GlyphWidths widths, float fontSize, String text) throws IOException {
+		return getStringWidth(widths, fontSize, text, 0, text.length());
+	}
+
+	public static float getStringWidth(GlyphWidths widths, float fontSize, CharSequence text, int begin, int end) throws IOException {
+		return widths.getStringWidth(text, begin, end) * fontSize / 1000.0f;
+	}
+
+	public static float getFontHeight(PDFont font, float fontSize) {
+		return font.getFontDescriptor().getCapHeight() * fontSize / 1000.0f;
+	}
+
+	public static class Op {
+		private Op() {
+		}
+	}
+
+	private static class TextOp extends Op {
+		String text;
+
+		TextOp(String text) {
+			this.text = text;
+		}
+	}
+
+	private static class NewLineOp extends Op {
+		float width;
+		float height;
+		Horizontal textAlign;
+
+		NewLineOp(float width, float height) {
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	private static class FontOp extends Op {
+		String fontName;
+		float fontSize;
+		PDFont font;
+
+		FontOp(String fontName, float fontSize) {
+			this.fontName = fontName;
+			this.fontSize = fontSize;
+		}
+	}
+
+	private static class LineHeightOp extends Op {
+		float lineHeight;
+
+		LineHeightOp(float lineHeight) {
+			this.lineHeight = lineHeight;
+		}
+	}
+
+	private static class TextAlignOp extends Op {
+		Horizontal textAlign;
+
+		TextAlignOp(Horizontal textAlign) {
+			this.textAlign = textAlign;
+		}
+	}
+
+	private static class TextOverflowOp extends Op {
+		Overflow textOverflow;
+
+		TextOverflowOp(Overflow textOverflow) {
+			this.textOverflow = textOverflow;
+		}
+	}
+
+	/**
+	 * 段落の文字幅(1/1000 em 単位)の累積和です。
+	 * 段落全体が 1 行に収まる場合は累積和を求めません。
+	 */
+	public static class PrefixWidths {
+		private GlyphWidths widths;
+		private String text;
+		private double[] sums;
+
+		public PrefixWidths(GlyphWidths widths, String text) {
+			this.widths = widths;
+			this.text = text;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * begin から幅が limit を超えない最大の位置を返します。位置はコードポイントの境界になります。
+		 * 位置 i の累積和は sums[i] です。サロゲートペアの途中の位置にはペアの前の位置と同じ値が格納されています。
+		 */
+		int find(int begin, double limit) throws IOException {
+			if(sums == null) {
+				sums = new double[text.length() + 1];
+				double sum = 0.0;
+				int i = 0;
+				while(i < text.length()) {
+					int codePoint = text.codePointAt(i);
+					int n = Character.charCount(codePoint);
+					if(n == 2) {
+						sums[i + 1] = sum;
+					}
+					sum += widths.getWidth(codePoint);
+					i += n;
+					sums[i] = sum;
+				}
+			}
+			double target = sums[begin] + limit;
+			int s = begin;
+			int e = text.length();
+			while(s < e) {
+				int m = (s + e + 1) >>> 1;
+				if(sums[m] <= target) {
+					s = m;
+				} else {
+					e = m - 1;
+				}
+			}
+			if(s > begin && s < text.length() && Character.isLowSurrogate(text.charAt(s))) {
+				s--;
+			}
+			return s;
+		}
+	}
+
+	public static class DivideResult {
+		public float width;
+		public String text1;
+		public String text2;
+		public int end;
+
+		public DivideResult(float width, String text1, String text2) {
+			this(width, text1, text2, -1);
+		}
+
+		public DivideResult(float width, String text1, String text2, int end) {
+			this.width = width;
+			this.text1 = text1;
+			this.text2 = text2;
+			this.end = end;
+		}
+	}
+}
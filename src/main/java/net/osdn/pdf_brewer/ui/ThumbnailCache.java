@@ -0,0 +1,185 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import javafx.scene.image.Image;
+
+/**
+ * サムネイルを PNG ファイルとしてデータ保存ディレクトリの thumbnails フォルダーに保持するキャッシュです。
+ *
+ * キーは DocumentLoader.getPageKey が返す文字列とサムネイルの幅から作ります。
+ * 同じファイルを開き直したときや、.pb を編集して変更されなかったページは描画せずに表示できます。
+ *
+ * 保持するファイルの合計サイズがシステムプロパティ {@value #MAX_SIZE_PROPERTY} (MB 単位、既定値は 64)を超えると、
+ * 最も長い間使われていないファイルから削除します。(使われた時刻はファイルの更新日時で表します。)
+ * 読み書きは複数のスレッドから同時に呼び出して構いません。
+ */
+public class ThumbnailCache {
+
+	public static final String MAX_SIZE_PROPERTY = "pdf-brewer.thumbnail-cache";
+	private static final long DEFAULT_MAX_SIZE_MB = 64;
+	private static final String DIRECTORY_NAME = "thumbnails";
+
+	private static ThumbnailCache defaultCache;
+
+	public static synchronized ThumbnailCache getDefault() {
+		if(defaultCache == null) {
+			long mb = DEFAULT_MAX_SIZE_MB;
+			try {
+				mb = Long.parseLong(System.getProperty(MAX_SIZE_PROPERTY, Long.toString(DEFAULT_MAX_SIZE_MB)).trim());
+			} catch(NumberFormatException e) {
+				e.printStackTrace();
+			}
+			Path dir = null;
+			try {
+				dir = Datastore.getMyDataDirectory().resolve(DIRECTORY_NAME);
+			} catch(Exception e) {
+				// データ保存ディレクトリを参照できない場合はサムネイルを保存しません。
+			}
+			defaultCache = new ThumbnailCache(dir, Math.max(0, mb) * 1024 * 1024);
+		}
+		return defaultCache;
+	}
+
+	private Path dir;
+	private long maxSize;
+	private long size = -1;
+
+	public ThumbnailCache(Path dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	public Path getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * キャッシュされているサムネイルを読み込んで返します。キャッシュされていない場合は null を返します。
+	 */
+	public Image get(String key, int width) {
+		Path file = getFile(key, width);
+		if(file == null || !Files.isRegularFile(file)) {
+			return null;
+		}
+		try(InputStream in = Files.newInputStream(file)) {
+			Image image = new Image(in);
+			if(image.isError()) {
+				return null;
+			}
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return image;
+		} catch(IOException e) {
+			// 削除された直後です。
+			return null;
+		}
+	}
+
+	/**
+	 * サムネイルを PNG ファイルとして保存します。
+	 * 書き込み途中のファイルが読み込まれないように、一時ファイルに書き込んでから名前を変更します。
+	 */
+	public void put(String key, int width, BufferedImage image) {
+		Path file = getFile(key, width);
+		if(file == null || maxSize <= 0) {
+			return;
+		}
+		Path tmp = null;
+		try {
+			Files.createDirectories(dir);
+			tmp = Files.createTempFile(dir, "thumbnail", ".tmp");
+			ImageIO.write(image, "png", tmp.toFile());
+			long length = Files.size(tmp);
+			// 同じキーのファイルを置き換える場合は、置き換えられるファイルの分を差し引きます。
+			long replaced = Files.isRegularFile(file) ? Files.size(file) : 0;
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			add(length - replaced);
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 合計サイズに length を加えます。(置き換えた場合は負の値になることがあります。)
+	 */
+	private synchronized void add(long length) throws IOException {
+		if(size < 0) {
+			size = 0;
+			for(Path file : list()) {
+				size += Files.size(file);
+			}
+		} else {
+			size += length;
+		}
+		if(size > maxSize) {
+			trim();
+		}
+	}
+
+	/**
+	 * 更新日時の古いファイルから削除して、合計サイズを上限の 3/4 まで減らします。
+	 */
+	private void trim() throws IOException {
+		List<Path> files = list();
+		List<FileTime> times = new ArrayList<FileTime>();
+		for(Path file : files) {
+			times.add(Files.getLastModifiedTime(file));
+		}
+		List<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < files.size(); i++) {
+			order.add(i);
+		}
+		order.sort(Comparator.comparing(times::get));
+		for(int i : order) {
+			if(size <= maxSize * 3 / 4) {
+				break;
+			}
+			Path file = files.get(i);
+			long length = Files.size(file);
+			if(Files.deleteIfExists(file)) {
+				size -= length;
+			}
+		}
+	}
+
+	private List<Path> list() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		if(!Files.isDirectory(dir)) {
+			return files;
+		}
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.png")) {
+			for(Path file : stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private Path getFile(String key, int width) {
+		if(dir == null || key == null) {
+			return null;
+		}
+		return dir.resolve(key + "-w" + width + ".png");
+	}
+}
@@ -0,0 +1,396 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.geometry.Pos;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.StackPane;
+
+/**
+ * ページのサムネイルを縦に並べて表示するサイドバーです。サムネイルをクリックするとそのページを表示します。
+ *
+ * ListView なのでセルは仮想化され、表示されている範囲のサムネイルだけが作られます。
+ * サムネイルはセルが表示されたときに ThumbnailCache (ディスク)から読み込み、なければ低い解像度で描画します。
+ * ディスクからの読み込みと書き込みは少数のスレッドで並列に行います。
+ * 描画は ExtendedPdfView のワーカースレッドで 1 ページずつ、表示されているページを上から順に行います。
+ * (PDDocument はスレッドセーフではないため、表示中のページの描画と同じスレッドで描画します。
+ * 1 ページずつ投入するので、表示中のページの描画を待たせるのはサムネイル 1 つ分だけです。)
+ * スクロールして見えなくなったページは、描画が始まる前であれば描画しません。
+ *
+ * ディスクキャッシュのキーには documentLoader の getPageKey を使用します。
+ * documentLoader が表示中のドキュメントを読み込んだものでない場合はディスクキャッシュを使用しません。
+ */
+public class ThumbnailView extends ListView<Integer> {
+
+	/** サムネイルの幅(ピクセル)です。 */
+	public static final int THUMBNAIL_WIDTH = 120;
+
+	/** メモリーに保持するサムネイルの数です。 */
+	private static final int MEMORY_CACHE_SIZE = 200;
+
+	/** ディスクキャッシュを読み書きするスレッドの数です。 */
+	private static final int IO_THREADS = 2;
+
+	private static ExecutorService io;
+
+	private static synchronized ExecutorService getIOExecutor() {
+		if(io == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+				Thread thread = new Thread(r, "ThumbnailCache");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.allowCoreThreadTimeOut(true);
+			io = executor;
+		}
+		return io;
+	}
+
+	private ObjectProperty<ExtendedPdfView> pdfViewProperty = new SimpleObjectProperty<ExtendedPdfView>(this, "pdfView");
+	private ObjectProperty<DocumentLoader> documentLoaderProperty = new SimpleObjectProperty<DocumentLoader>(this, "documentLoader");
+	private ThumbnailCache diskCache = ThumbnailCache.getDefault();
+	private InvalidationListener documentListener = observable -> setDocument(getPdfView().getDocument());
+	private InvalidationListener pageIndexListener = observable -> select(getPdfView().getPageIndex());
+
+	// 以下は JavaFX アプリケーションスレッドからだけ使用します。
+	private Map<Integer, Image> images = new LinkedHashMap<Integer, Image>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Image> eldest) {
+			return size() > MEMORY_CACHE_SIZE;
+		}
+	};
+	private Map<Integer, Thumbnail> cells = new HashMap<Integer, Thumbnail>();
+	private Map<Integer, String> requested = new HashMap<Integer, String>();
+
+	// 描画待ちのページです。ワーカースレッドと共有します。generation は queue のロックを取得して変更します。
+	private volatile Generation generation = new Generation(null);
+	private TreeSet<Integer> queue = new TreeSet<Integer>();
+	private AtomicBoolean isRendering = new AtomicBoolean();
+
+	public ThumbnailView() {
+		getStyleClass().add("thumbnail-view");
+		setCellFactory(listView -> new Thumbnail());
+		setFocusTraversable(false);
+
+		pdfViewProperty.addListener((observable, oldValue, newValue) -> {
+			if(oldValue != null) {
+				oldValue.documentProperty().removeListener(documentListener);
+				oldValue.pageIndexProperty().removeListener(pageIndexListener);
+			}
+			if(newValue != null) {
+				newValue.documentProperty().addListener(documentListener);
+				newValue.pageIndexProperty().addListener(pageIndexListener);
+			}
+			setDocument(newValue != null ? newValue.getDocument() : null);
+		});
+		getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
+			ExtendedPdfView pdfView = getPdfView();
+			if(newValue != null && pdfView != null && pdfView.getPageIndex() != newValue) {
+				pdfView.setPageIndex(newValue);
+			}
+		});
+	}
+
+	/**
+	 * サムネイルを描画し、クリックされたページを表示する ExtendedPdfView です。
+	 */
+	public ObjectProperty<ExtendedPdfView> pdfViewProperty() {
+		return pdfViewProperty;
+	}
+
+	public final ExtendedPdfView getPdfView() {
+		return pdfViewProperty.get();
+	}
+
+	public final void setPdfView(ExtendedPdfView value) {
+		pdfViewProperty.set(value);
+	}
+
+	/**
+	 * ディスクキャッシュのキーを求める DocumentLoader です。
+	 */
+	public ObjectProperty<DocumentLoader> documentLoaderProperty() {
+		return documentLoaderProperty;
+	}
+
+	public final DocumentLoader getDocumentLoader() {
+		return documentLoaderProperty.get();
+	}
+
+	public final void setDocumentLoader(DocumentLoader value) {
+		documentLoaderProperty.set(value);
+	}
+
+	private void select(int pageIndex) {
+		if(pageIndex < 0 || pageIndex >= getItems().size()) {
+			return;
+		}
+		if(getSelectionModel().getSelectedIndex() != pageIndex) {
+			getSelectionModel().clearAndSelect(pageIndex);
+			scrollToVisible(pageIndex);
+		}
+	}
+
+	private void scrollToVisible(int pageIndex) {
+		Thumbnail first = null;
+		Thumbnail last = null;
+		for(Thumbnail cell : cells.values()) {
+			if(first == null || cell.getIndex() < first.getIndex()) {
+				first = cell;
+			}
+			if(last == null || cell.getIndex() > last.getIndex()) {
+				last = cell;
+			}
+		}
+		// 端のセルは一部しか見えていない可能性があるので、完全に見えているのはその内側だけとみなします。
+		if(first == null || pageIndex <= first.getIndex() || pageIndex >= last.getIndex()) {
+			scrollTo(Math.max(0, pageIndex - 1));
+		}
+	}
+
+	/**
+	 * 表示するドキュメントを変更します。サムネイルと描画待ちのページは破棄されます。
+	 * (内容が変わっていないページのサムネイルはディスクキャッシュから読み込まれます。)
+	 */
+	private void setDocument(PDDocument document) {
+		synchronized(queue) {
+			generation = new Generation(document);
+			queue.clear();
+		}
+		images.clear();
+		requested.clear();
+
+		int count = (document != null) ? document.getNumberOfPages() : 0;
+		ObservableList<Integer> items = FXCollections.observableArrayList();
+		for(int i = 0; i < count; i++) {
+			items.add(i);
+		}
+		setItems(items);
+		ExtendedPdfView pdfView = getPdfView();
+		if(pdfView != null && pdfView.getPageIndex() >= 0 && pdfView.getPageIndex() < count) {
+			getSelectionModel().clearAndSelect(pdfView.getPageIndex());
+			scrollTo(Math.max(0, pdfView.getPageIndex() - 1));
+		}
+	}
+
+	/**
+	 * セルが表示されたページのサムネイルを要求します。
+	 */
+	private void request(int pageIndex) {
+		Generation g = generation;
+		if(g.document == null || requested.containsKey(pageIndex)) {
+			return;
+		}
+		String key = getPageKey(g.document, pageIndex);
+		requested.put(pageIndex, key);
+		if(key == null) {
+			enqueue(g, pageIndex);
+			return;
+		}
+		getIOExecutor().execute(() -> {
+			if(generation != g) {
+				return;
+			}
+			Image image = diskCache.get(key, THUMBNAIL_WIDTH);
+			if(image != null) {
+				Platform.runLater(() -> show(g, pageIndex, image));
+			} else {
+				enqueue(g, pageIndex);
+			}
+		});
+	}
+
+	/**
+	 * セルが別のページの表示に使われたときに、描画前であれば描画を取り消します。
+	 */
+	private void cancel(int pageIndex) {
+		boolean removed;
+		synchronized(queue) {
+			removed = queue.remove(pageIndex);
+		}
+		if(removed) {
+			requested.remove(pageIndex);
+		}
+	}
+
+	private String getPageKey(PDDocument document, int pageIndex) {
+		DocumentLoader loader = getDocumentLoader();
+		if(loader == null || loader.getDocument() != document) {
+			return null;
+		}
+		return loader.getPageKey(pageIndex);
+	}
+
+	private void enqueue(Generation g, int pageIndex) {
+		synchronized(queue) {
+			if(generation != g) {
+				return;
+			}
+			queue.add(pageIndex);
+		}
+		ExtendedPdfView pdfView = getPdfView();
+		if(pdfView != null && isRendering.compareAndSet(false, true)) {
+			pdfView.execute(this::renderNext);
+		}
+	}
+
+	/**
+	 * 描画待ちのページのうち最も前のページを 1 つ描画し、まだ残っていればワーカースレッドに再投入します。
+	 */
+	private void renderNext() {
+		Generation g;
+		Integer pageIndex;
+		synchronized(queue) {
+			g = generation;
+			pageIndex = queue.pollFirst();
+			if(pageIndex == null) {
+				isRendering.set(false);
+				return;
+			}
+		}
+		try {
+			if(g.document != null && !g.document.getDocument().isClosed()) {
+				BufferedImage bimg = render(g.document, pageIndex);
+				Image image = ExtendedPdfView.toFXImage(bimg);
+				Platform.runLater(() -> {
+					String key = show(g, pageIndex, image);
+					if(key != null) {
+						getIOExecutor().execute(() -> diskCache.put(key, THUMBNAIL_WIDTH, bimg));
+					}
+				});
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		ExtendedPdfView pdfView = getPdfView();
+		if(pdfView != null) {
+			pdfView.execute(this::renderNext);
+		} else {
+			isRendering.set(false);
+		}
+	}
+
+	/**
+	 * ページを幅 THUMBNAIL_WIDTH で描画します。画像は縮小して読み込みます。(サブサンプリング)
+	 */
+	protected BufferedImage render(PDDocument document, int pageIndex) throws Exception {
+		PDRectangle paper = document.getPage(pageIndex).getCropBox();
+		double scale = THUMBNAIL_WIDTH / paper.getWidth();
+		int width = THUMBNAIL_WIDTH;
+		int height = Math.max(1, (int)(paper.getHeight() * scale));
+		BufferedImage bimg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D graphics = bimg.createGraphics();
+		try {
+			graphics.setBackground(Color.WHITE);
+			graphics.clearRect(0, 0, width, height);
+			PDFRenderer renderer = new PDFRenderer(document);
+			renderer.setSubsamplingAllowed(true);
+			renderer.renderPageToGraphics(pageIndex, graphics, (float)scale);
+		} finally {
+			graphics.dispose();
+		}
+		return bimg;
+	}
+
+	/**
+	 * サムネイルをセルに表示します。ドキュメントが変わっていた場合は何もせずに null を返します。
+	 * 表示した場合はディスクキャッシュのキーを返します。
+	 */
+	private String show(Generation g, int pageIndex, Image image) {
+		if(generation != g) {
+			return null;
+		}
+		images.put(pageIndex, image);
+		String key = requested.remove(pageIndex);
+		Thumbnail cell = cells.get(pageIndex);
+		if(cell != null) {
+			cell.setImage(image);
+		}
+		return key;
+	}
+
+	private static class Generation {
+		final PDDocument document;
+
+		Generation(PDDocument document) {
+			this.document = document;
+		}
+	}
+
+	private class Thumbnail extends ListCell<Integer> {
+		private ImageView imageView = new ImageView();
+		private StackPane frame = new StackPane(imageView);
+		private Integer pageIndex;
+
+		Thumbnail() {
+			getStyleClass().add("thumbnail");
+			frame.getStyleClass().add("thumbnail-frame");
+			setContentDisplay(ContentDisplay.TOP);
+			setAlignment(Pos.CENTER);
+			imageView.setFitWidth(THUMBNAIL_WIDTH);
+			imageView.setPreserveRatio(true);
+		}
+
+		void setImage(Image image) {
+			imageView.setImage(image);
+			// 描画されるまでは A 判縦長の高さを確保して、表示されたときにスクロール位置がずれないようにします。
+			double height = (image != null) ? image.getHeight() * THUMBNAIL_WIDTH / image.getWidth() : THUMBNAIL_WIDTH * Math.sqrt(2);
+			frame.setPrefSize(THUMBNAIL_WIDTH, height);
+			frame.setMaxSize(THUMBNAIL_WIDTH, height);
+		}
+
+		@Override
+		protected void updateItem(Integer item, boolean empty) {
+			super.updateItem(item, empty);
+			if(pageIndex != null && !pageIndex.equals(item)) {
+				if(cells.get(pageIndex) == this) {
+					cells.remove(pageIndex);
+				}
+				if(!images.containsKey(pageIndex)) {
+					cancel(pageIndex);
+				}
+			}
+			pageIndex = empty ? null : item;
+			if(pageIndex == null) {
+				setText(null);
+				setGraphic(null);
+				return;
+			}
+			cells.put(pageIndex, this);
+			setText(Integer.toString(pageIndex + 1));
+			setGraphic(frame);
+			Image image = images.get(pageIndex);
+			setImage(image);
+			if(image == null) {
+				request(pageIndex);
+			}
+		}
+	}
+}
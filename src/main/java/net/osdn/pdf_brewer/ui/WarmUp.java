@@ -0,0 +1,103 @@
+package net.osdn.pdf_brewer.ui;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import com.esotericsoftware.yamlbeans.YamlReader;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import net.osdn.pdf_brewer.BrewerData;
+
+/**
+ * 起動直後に PDFBox、FontBox、FreeMarker、yamlbeans のクラスを読み込み、既定のフォントを読み込んでおきます。
+ *
+ * 小さなドキュメントを IncrementalBrewer で生成して描画するため、最初に開いたファイルも 2 回目以降と同じ速さで表示されます。
+ * 読み込んだ FontLoader は FontLoaderPool に返却され、最初の読み込みで再利用されます。
+ *
+ * 処理は優先度の低いデーモンスレッドで実行されます。
+ * システムプロパティ {@value #PROPERTY} に false を指定するとウォームアップしません。
+ */
+public class WarmUp implements Runnable {
+
+	public static final String PROPERTY = "pdf-brewer.warm-up";
+
+	private static final String FONT = "serif";
+
+	private static final List<String> LINES = Arrays.asList(
+			"\\media A6",
+			"\\font " + FONT + " 10.5",
+			"\\box 10 10 -10 -10",
+			"\t\\text-overflow wrap",
+			"\t\\text PDF BREWER warm-up");
+
+	/**
+	 * ウォームアップ用のスレッドを開始します。システムプロパティで無効にされている場合は何もせずに null を返します。
+	 */
+	public static Thread start() {
+		if(!Boolean.parseBoolean(System.getProperty(PROPERTY, "true"))) {
+			return null;
+		}
+		Thread thread = new Thread(new WarmUp(), "WarmUp");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return thread;
+	}
+
+	@Override
+	public void run() {
+		try {
+			yaml();
+			freemarker();
+			brew();
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void yaml() throws IOException {
+		new YamlReader("title: warm-up\ntemplate: warm-up.ftl\nitems: [a, b]").read();
+	}
+
+	protected void freemarker() throws Exception {
+		try {
+			DocumentLoader.getTemplatesDirectory();
+		} catch(IOException e) {
+			// templates フォルダーがない環境では .yml を使用しないので問題ありません。
+		}
+		Configuration configuration = new Configuration(Configuration.VERSION_2_3_26);
+		Template template = new Template("warm-up", new StringReader("<#list items as item>${item?index} ${item}</#list>"), configuration);
+		Map<String, Object> model = Map.of("items", Arrays.asList("a", "b"));
+		template.process(model, new StringWriter());
+	}
+
+	/**
+	 * 既定の FontLoader を取得して小さなドキュメントを生成し、1 ページ目を描画します。
+	 */
+	protected void brew() throws IOException {
+		IncrementalBrewer incremental = new IncrementalBrewer();
+		try {
+			if(incremental.getFontLoader().getFont(FONT) == null) {
+				// 既定のフォントがない環境ではドキュメントを生成できません。
+				return;
+			}
+			BrewerData pb = new BrewerData(LINES, incremental.getFontLoader());
+			try(IncrementalBrewer.Build build = incremental.build(pb, null, null, () -> {})) {
+				PDDocument document = build.getDocument();
+				if(document.getNumberOfPages() > 0) {
+					new PDFRenderer(document).renderImageWithDPI(0, 36);
+				}
+			}
+		} finally {
+			incremental.release();
+		}
+	}
+}